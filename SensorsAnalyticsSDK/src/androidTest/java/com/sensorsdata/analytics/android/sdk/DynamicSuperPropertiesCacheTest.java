@@ -0,0 +1,107 @@
+/*
+ * Created by dengshiwei on 2020/06/18.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicSuperPropertiesCacheTest {
+    private volatile long mDelay;
+    private int mLoadCount;
+
+    private final Callable<JSONObject> mLoader = new Callable<JSONObject>() {
+        @Override
+        public JSONObject call() throws Exception {
+            Thread.sleep(mDelay);
+            return new JSONObject().put("load", ++mLoadCount);
+        }
+    };
+
+    /**
+     * 有效期内复用结果，失效后重新执行回调
+     */
+    @Test
+    public void get_ttl() throws Exception {
+        DynamicSuperPropertiesCache cache = new DynamicSuperPropertiesCache(60 * 1000, 0);
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        cache.invalidate();
+        assertEquals(2, cache.get(mLoader).getInt("load"));
+    }
+
+    /**
+     * 回调超时后使用上一次的结果，回调完成后更新缓存
+     */
+    @Test
+    public void get_timeout() throws Exception {
+        DynamicSuperPropertiesCache cache = new DynamicSuperPropertiesCache(0, 100);
+        mDelay = 500;
+        assertNull(cache.get(mLoader));
+        Thread.sleep(1000);
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+
+        mDelay = 0;
+        assertEquals(2, cache.get(mLoader).getInt("load"));
+    }
+
+    /**
+     * 超过有效期后重新执行回调
+     */
+    @Test
+    public void get_ttlExpired() throws Exception {
+        DynamicSuperPropertiesCache cache = new DynamicSuperPropertiesCache(200, 0);
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        Thread.sleep(400);
+        assertEquals(2, cache.get(mLoader).getInt("load"));
+
+        DynamicSuperPropertiesStats stats = cache.getStats();
+        assertEquals(2, stats.getLoadCount());
+        assertEquals(1, stats.getHitCount());
+        assertEquals(0, stats.getTimeoutCount());
+    }
+
+    /**
+     * 已有结果时回调超时返回上一次的结果，超时的回调未完成前不重复执行
+     */
+    @Test
+    public void get_timeoutFallback() throws Exception {
+        DynamicSuperPropertiesCache cache = new DynamicSuperPropertiesCache(0, 100);
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+
+        mDelay = 500;
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        assertEquals(1, cache.get(mLoader).getInt("load"));
+        DynamicSuperPropertiesStats stats = cache.getStats();
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getTimeoutCount());
+
+        Thread.sleep(1000);
+        assertEquals(2, cache.get(mLoader).getInt("load"));
+        stats = cache.getStats();
+        assertEquals(2, stats.getLoadCount());
+        assertTrue(stats.getMaxLoadTime() >= 500);
+    }
+}
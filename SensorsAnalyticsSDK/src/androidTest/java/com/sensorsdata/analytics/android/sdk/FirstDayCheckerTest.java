@@ -0,0 +1,92 @@
+/*
+ * Created by dengshiwei on 2020/06/17.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FirstDayCheckerTest {
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void isFirstDay() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Shanghai"));
+        FirstDayChecker checker = new FirstDayChecker();
+        assertTrue(checker.isFirstDay(null, System.currentTimeMillis()));
+        assertTrue(checker.isFirstDay("2020-06-17", time("2020-06-17 00:00:00.000")));
+        assertTrue(checker.isFirstDay("2020-06-17", time("2020-06-17 23:59:59.999")));
+        assertFalse(checker.isFirstDay("2020-06-17", time("2020-06-16 23:59:59.999")));
+        assertFalse(checker.isFirstDay("2020-06-17", time("2020-06-18 00:00:00.000")));
+    }
+
+    /**
+     * 夏令时切换当天为 23 小时或 25 小时
+     */
+    @Test
+    public void isFirstDay_daylightSaving() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        FirstDayChecker checker = new FirstDayChecker();
+        assertTrue(checker.isFirstDay("2020-03-08", time("2020-03-08 23:30:00.000")));
+        assertFalse(checker.isFirstDay("2020-03-08", time("2020-03-09 00:00:00.000")));
+
+        assertTrue(checker.isFirstDay("2020-11-01", time("2020-11-01 23:30:00.000")));
+        assertTrue(checker.isFirstDay("2020-11-01", time("2020-11-01 00:00:00.000") + 25 * 3600 * 1000L - 1));
+        assertFalse(checker.isFirstDay("2020-11-01", time("2020-11-02 00:00:00.000")));
+    }
+
+    /**
+     * 时区变化后重新计算首日范围
+     */
+    @Test
+    public void isFirstDay_timeZoneChanged() throws Exception {
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Shanghai"));
+        FirstDayChecker checker = new FirstDayChecker();
+        long eventTime = time("2020-06-17 10:00:00.000");
+        assertTrue(checker.isFirstDay("2020-06-17", eventTime));
+
+        // 北京时间 10:00 为纽约时间前一天 22:00
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        checker.invalidate();
+        assertFalse(checker.isFirstDay("2020-06-17", eventTime));
+        assertTrue(checker.isFirstDay("2020-06-16", eventTime));
+    }
+
+    private static long time(String time) throws Exception {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getDefault());
+        return dateFormat.parse(time).getTime();
+    }
+}
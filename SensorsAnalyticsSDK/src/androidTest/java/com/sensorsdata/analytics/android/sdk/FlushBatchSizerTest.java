@@ -0,0 +1,120 @@
+/*
+ * Created by dengshiwei on 2020/06/10.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushBatchSizerTest {
+    /**
+     * 最小条数与最大条数相同时，保持固定条数
+     */
+    @Test
+    public void nextBatchSize_fixedRange() {
+        FlushBatchSizer sizer = new FlushBatchSizer();
+        assertEquals(50, sizer.nextBatchSize("WIFI", 50, 50));
+        sizer.onSuccess("WIFI", 50, 1024, 100);
+        assertEquals(50, sizer.nextBatchSize("WIFI", 50, 50));
+    }
+
+    /**
+     * 请求快速成功时增大条数，失败时减小条数，且不超出区间
+     */
+    @Test
+    public void nextBatchSize_adaptive() {
+        FlushBatchSizer sizer = new FlushBatchSizer();
+        assertEquals(FlushBatchSizer.DEFAULT_BATCH_SIZE, sizer.nextBatchSize("4G", 10, 200));
+
+        sizer.onSuccess("4G", 50, 50 * 1024, 200);
+        int grown = sizer.nextBatchSize("4G", 10, 200);
+        assertTrue(grown > FlushBatchSizer.DEFAULT_BATCH_SIZE);
+        for (int i = 0; i < 10; i++) {
+            sizer.onSuccess("4G", grown, grown * 1024L, 200);
+        }
+        assertEquals(200, sizer.nextBatchSize("4G", 10, 200));
+
+        for (int i = 0; i < 10; i++) {
+            sizer.onFailure("4G");
+        }
+        assertEquals(10, sizer.nextBatchSize("4G", 10, 200));
+
+        // 不同网络类型互不影响
+        assertEquals(FlushBatchSizer.DEFAULT_BATCH_SIZE, sizer.nextBatchSize("WIFI", 10, 200));
+    }
+
+    /**
+     * 服务端返回 413 时保留数据并减半条数，固定条数时同样生效，单条数据过大时才删除
+     */
+    @Test
+    public void onEntityTooLarge() {
+        FlushBatchSizer sizer = new FlushBatchSizer();
+        assertTrue(sizer.onEntityTooLarge("WIFI", 50));
+        assertEquals(25, sizer.nextBatchSize("WIFI", 50, 50));
+        // 上限只作用于返回 413 的网络类型
+        assertEquals(FlushBatchSizer.DEFAULT_BATCH_SIZE, sizer.nextBatchSize("4G", 10, 200));
+
+        int batchSize = 25;
+        while (batchSize > 1) {
+            assertTrue(sizer.onEntityTooLarge("WIFI", batchSize));
+            int next = sizer.nextBatchSize("WIFI", 50, 50);
+            assertTrue(next < batchSize);
+            batchSize = next;
+        }
+        assertEquals(1, batchSize);
+        assertFalse(sizer.onEntityTooLarge("WIFI", 1));
+        assertFalse(sizer.onEntityTooLarge("WIFI", 0));
+    }
+
+    /**
+     * 按 413 上限条数连续成功后逐步放宽上限，期间再次 413 时重新计数
+     */
+    @Test
+    public void onEntityTooLarge_relax() {
+        FlushBatchSizer sizer = new FlushBatchSizer();
+        assertTrue(sizer.onEntityTooLarge("WIFI", 50));
+        assertEquals(25, sizer.nextBatchSize("WIFI", 50, 50));
+
+        // 条数少于上限的成功不计数
+        for (int i = 0; i < FlushBatchSizer.ENTITY_TOO_LARGE_RELAX_COUNT; i++) {
+            sizer.onSuccess("WIFI", 10, 10 * 1024, 100);
+        }
+        assertEquals(25, sizer.nextBatchSize("WIFI", 50, 50));
+
+        for (int i = 0; i < FlushBatchSizer.ENTITY_TOO_LARGE_RELAX_COUNT - 1; i++) {
+            sizer.onSuccess("WIFI", 25, 25 * 1024, 100);
+        }
+        assertTrue(sizer.onEntityTooLarge("WIFI", 25));
+        assertEquals(12, sizer.nextBatchSize("WIFI", 50, 50));
+
+        for (int i = 0; i < FlushBatchSizer.ENTITY_TOO_LARGE_RELAX_COUNT; i++) {
+            sizer.onSuccess("WIFI", 12, 12 * 1024, 100);
+        }
+        assertEquals(24, sizer.nextBatchSize("WIFI", 50, 50));
+        for (int i = 0; i < FlushBatchSizer.ENTITY_TOO_LARGE_RELAX_COUNT; i++) {
+            sizer.onSuccess("WIFI", 24, 24 * 1024, 100);
+        }
+        assertEquals(48, sizer.nextBatchSize("WIFI", 50, 50));
+        for (int i = 0; i < FlushBatchSizer.ENTITY_TOO_LARGE_RELAX_COUNT; i++) {
+            sizer.onSuccess("WIFI", 48, 48 * 1024, 100);
+        }
+        assertEquals(50, sizer.nextBatchSize("WIFI", 50, 50));
+    }
+}
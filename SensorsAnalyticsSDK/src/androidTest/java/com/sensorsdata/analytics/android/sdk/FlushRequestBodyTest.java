@@ -0,0 +1,167 @@
+/*
+ * Created by dengshiwei on 2020/06/11.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.data.DbParams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushRequestBodyTest {
+    private static final String RAW_MESSAGE = "[{\"event\":\"AppStart\",\"properties\":{\"$os\":\"Android\",\"name\":\"神策\"}}]";
+
+    /**
+     * 二进制格式：通过本地服务接收请求，校验请求头以及解压后的数据
+     */
+    @Test
+    public void binaryBody() throws Exception {
+        FlushRequestBody requestBody = new FlushRequestBody(RAW_MESSAGE, DbParams.GZIP_DATA_EVENT, true);
+        assertTrue(requestBody.isBinary());
+        MockServer server = new MockServer();
+        server.start();
+        int responseCode = post(server.getPort(), requestBody);
+        server.join(5000);
+
+        assertEquals(200, responseCode);
+        assertEquals("gzip", server.headers.get("content-encoding"));
+        assertEquals("application/json", server.headers.get("content-type"));
+        assertEquals(requestBody.getContentLength(), server.body.length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(server.body, 0, server.body.length);
+        assertEquals(String.valueOf(crc32.getValue()), server.headers.get(FlushRequestBody.HEADER_CRC));
+        assertEquals(RAW_MESSAGE, new String(gunzip(server.body), "UTF-8"));
+    }
+
+    /**
+     * 加密数据不支持二进制格式，仍使用表单格式
+     */
+    @Test
+    public void encryptDataUsesForm() throws Exception {
+        FlushRequestBody requestBody = new FlushRequestBody(RAW_MESSAGE, DbParams.GZIP_DATA_ENCRYPT, true);
+        assertFalse(requestBody.isBinary());
+        MockServer server = new MockServer();
+        server.start();
+        post(server.getPort(), requestBody);
+        server.join(5000);
+
+        assertEquals("application/x-www-form-urlencoded", server.headers.get("content-type"));
+        assertTrue(new String(server.body, "UTF-8").startsWith("crc="));
+    }
+
+    private static int post(int port, FlushRequestBody requestBody) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/sa").openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            requestBody.applyTo(connection);
+            OutputStream out = connection.getOutputStream();
+            requestBody.writeTo(out);
+            out.close();
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws Exception {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 只处理一次请求的本地 HTTP 服务
+     */
+    private static class MockServer extends Thread {
+        private final ServerSocket mServerSocket;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body;
+
+        MockServer() throws Exception {
+            mServerSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            try {
+                socket = mServerSocket.accept();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String line = readLine(in);
+                while (!(line = readLine(in)).isEmpty()) {
+                    int index = line.indexOf(':');
+                    headers.put(line.substring(0, index).trim().toLowerCase(Locale.US), line.substring(index + 1).trim());
+                }
+                body = new byte[Integer.parseInt(headers.get("content-length"))];
+                in.readFully(body);
+                OutputStream out = socket.getOutputStream();
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("UTF-8"));
+                out.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                    mServerSocket.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws Exception {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    builder.append((char) c);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
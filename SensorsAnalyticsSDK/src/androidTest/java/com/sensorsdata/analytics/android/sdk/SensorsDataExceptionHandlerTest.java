@@ -0,0 +1,55 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SensorsDataExceptionHandlerTest {
+    /**
+     * 前台崩溃时更新 $AppEnd 的结束时间，其他信息保持不变
+     */
+    @Test
+    public void refreshAppEndData_foreground() throws JSONException {
+        String endData = SensorsDataExceptionHandler.refreshAppEndData(appEndData(1000), true, 5000);
+        assertNotNull(endData);
+        JSONObject endDataProperty = new JSONObject(endData);
+        assertEquals(5000, endDataProperty.getLong(SensorsDataActivityLifecycleCallbacks.EVENT_TIMER));
+        assertEquals("MainActivity", endDataProperty.getString("$screen_name"));
+    }
+
+    /**
+     * 后台崩溃时保留 onActivityStopped 保存的结束时间，等待 Session 间隔的时长不计入 $AppEnd
+     */
+    @Test
+    public void refreshAppEndData_background() throws JSONException {
+        assertNull(SensorsDataExceptionHandler.refreshAppEndData(appEndData(1000), false, 5000));
+    }
+
+    private static String appEndData(long eventTimer) throws JSONException {
+        JSONObject endDataProperty = new JSONObject();
+        endDataProperty.put(SensorsDataActivityLifecycleCallbacks.EVENT_TIMER, eventTimer);
+        endDataProperty.put("$screen_name", "MainActivity");
+        return endDataProperty.toString();
+    }
+}
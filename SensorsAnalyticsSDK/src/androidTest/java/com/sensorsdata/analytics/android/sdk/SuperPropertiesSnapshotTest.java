@@ -0,0 +1,68 @@
+/*
+ * Created by dengshiwei on 2020/06/16.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuperPropertiesSnapshotTest {
+    /**
+     * 动态公共属性优先，忽略大小写去重
+     */
+    @Test
+    public void mergeInto() throws Exception {
+        JSONObject superProperties = new JSONObject();
+        superProperties.put("Channel", "store");
+        superProperties.put("level", 3);
+        JSONObject dynamicSuperProperties = new JSONObject();
+        dynamicSuperProperties.put("channel", "ad");
+        JSONObject properties = new JSONObject();
+        properties.put("level", 1);
+
+        SuperPropertiesSnapshot.create(superProperties).mergeInto(dynamicSuperProperties, properties);
+
+        assertFalse(properties.has("Channel"));
+        assertEquals("ad", properties.getString("channel"));
+        assertEquals(3, properties.getInt("level"));
+    }
+
+    /**
+     * 修改快照生成的 JSON 不影响快照
+     */
+    @Test
+    public void snapshotIsImmutable() throws Exception {
+        JSONObject superProperties = new JSONObject();
+        superProperties.put("tags", new JSONArray().put("a"));
+        SuperPropertiesSnapshot snapshot = SuperPropertiesSnapshot.create(superProperties);
+        superProperties.getJSONArray("tags").put("b");
+
+        JSONObject copy = snapshot.toJSONObject();
+        copy.getJSONArray("tags").put("c");
+        copy.put("name", "value");
+
+        JSONObject properties = new JSONObject();
+        snapshot.mergeInto(null, properties);
+        assertEquals(1, properties.getJSONArray("tags").length());
+        assertTrue(!properties.has("name"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Created by dengshiwei on 2020/06/15.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertNotEquals;
+
+public class TrackIdGeneratorTest {
+    private static final int ID_COUNT = 5000000;
+
+    /**
+     * 连续生成的 _track_id 不重复，包括计数越过 int 上限的情况
+     */
+    @Test
+    public void nextId_unique() {
+        assertUnique(new TrackIdGenerator());
+        assertUnique(new TrackIdGenerator(Integer.MAX_VALUE - ID_COUNT / 2));
+    }
+
+    private static void assertUnique(TrackIdGenerator generator) {
+        int[] ids = new int[ID_COUNT];
+        for (int i = 0; i < ID_COUNT; i++) {
+            ids[i] = generator.nextId();
+        }
+        Arrays.sort(ids);
+        for (int i = 1; i < ID_COUNT; i++) {
+            assertNotEquals(ids[i - 1], ids[i]);
+        }
+    }
+}
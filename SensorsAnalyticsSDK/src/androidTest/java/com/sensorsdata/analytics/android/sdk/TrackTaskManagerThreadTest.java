@@ -0,0 +1,57 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackTaskManagerThreadTest {
+    /**
+     * 任务抛出 Error 后消费线程继续执行之后的任务
+     */
+    @Test
+    public void run_errorTask() throws InterruptedException {
+        TrackTaskManagerThread managerThread = new TrackTaskManagerThread();
+        Thread thread = new Thread(managerThread);
+        thread.start();
+        final CountDownLatch latch = new CountDownLatch(1);
+        TrackTaskManager.getInstance().addTrackEventTask(new Runnable() {
+            @Override
+            public void run() {
+                throw new StackOverflowError("test");
+            }
+        });
+        TrackTaskManager.getInstance().addTrackEventTask(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(thread.isAlive());
+
+        managerThread.stop();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DataOperationTest {
+    private static final int EVENT_COUNT = 10;
+    private Context mContext;
+    private Uri mEventUri;
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mEventUri = DbParams.getInstance(mContext.getPackageName()).getEventUri();
+        mDirectory = new File(mContext.getCacheDir(), "sa_data_operation_test");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    /**
+     * 达到最大缓存时删除最早的事件，剩余字节数不超过最大缓存的 90%
+     */
+    @Test
+    public void deleteDataLowMemory_journal() {
+        EventStorage storage = new JournalEventStorage(mDirectory);
+        assertEvictToTarget(storage);
+    }
+
+    /**
+     * 直接读写数据库时同样只删除到最大缓存的 90%
+     */
+    @Test
+    public void deleteDataLowMemory_sqlite() {
+        EventStorage storage = new SQLiteEventStorage(SensorsDataDBHelper.getInstance(mContext));
+        storage.delete(DbParams.DB_DELETE_ALL);
+        assertEvictToTarget(storage);
+        storage.delete(DbParams.DB_DELETE_ALL);
+    }
+
+    private void assertEvictToTarget(EventStorage storage) {
+        EventDataOperation operation = new EventDataOperation(mContext);
+        operation.setEventStorage(storage);
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(DbParams.KEY_DATA, "data" + i);
+            values.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis() + i);
+            assertTrue(storage.insert(values) != -1);
+        }
+        long totalBytes = storage.getStorageSize();
+        long eventBytes = totalBytes / EVENT_COUNT;
+
+        // 未达到最大缓存时不删除
+        assertEquals(0, operation.deleteDataLowMemory(mEventUri, totalBytes + 1));
+        assertEquals(EVENT_COUNT, storage.count());
+
+        // 最大缓存为 5 条事件的字节数，一次删除最早的事件，保留不超过 90% 的最多条数
+        long maxCacheSize = eventBytes * 5;
+        int remainCount = (int) (maxCacheSize / 10 * 9 / eventBytes);
+        assertEquals(0, operation.deleteDataLowMemory(mEventUri, maxCacheSize));
+        assertTrue(storage.getStorageSize() <= maxCacheSize / 10 * 9);
+        assertEquals(remainCount, storage.count());
+        Cursor cursor = storage.query(EVENT_COUNT);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("data" + (EVENT_COUNT - remainCount), cursor.getString(cursor.getColumnIndex(DbParams.KEY_DATA)));
+        cursor.close();
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
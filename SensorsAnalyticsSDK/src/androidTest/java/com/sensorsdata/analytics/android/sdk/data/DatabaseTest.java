@@ -45,14 +45,14 @@ public class DatabaseTest {
     public static void setUp() {
         context = ApplicationProvider.getApplicationContext();
         context.deleteDatabase(DbParams.DATABASE_NAME);
-        dbHelper = new SensorsDataDBHelper(context);
+        dbHelper = SensorsDataDBHelper.getInstance(context);
     }
 
     @Test
     public void crudTest() {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         Cursor cursor = db.rawQuery("SELECT * FROM " + DbParams.TABLE_EVENTS, null);
-        assertEquals(3, cursor.getColumnCount());
+        assertEquals(5, cursor.getColumnCount());
         assertEquals(0, cursor.getCount());
         cursor.close();
 
@@ -75,4 +75,39 @@ public class DatabaseTest {
         cursor.close();
         context.deleteDatabase(DbParams.DATABASE_NAME);
     }
+
+    /**
+     * 从版本 5 升级时只新增 ekey、pkv 两列，保留已入库的数据
+     */
+    @Test
+    public void upgradeFromVersion5() {
+        String databaseName = "sensorsdata_upgrade_test";
+        context.deleteDatabase(databaseName);
+        SQLiteDatabase db = context.openOrCreateDatabase(databaseName, Context.MODE_PRIVATE, null);
+        db.execSQL(String.format("CREATE TABLE %s (_id INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL, %s INTEGER NOT NULL);",
+                DbParams.TABLE_EVENTS, DbParams.KEY_DATA, DbParams.KEY_CREATED_AT));
+        ContentValues values = new ContentValues();
+        values.put(DbParams.KEY_DATA, "foobar");
+        values.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        long id = db.insert(DbParams.TABLE_EVENTS, "_id", values);
+        assertNotEquals(-1, id);
+
+        dbHelper.onUpgrade(db, 5, DbParams.DATABASE_VERSION);
+
+        Cursor cursor = db.rawQuery("SELECT * FROM " + DbParams.TABLE_EVENTS, null);
+        assertEquals(5, cursor.getColumnCount());
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(id, cursor.getLong(cursor.getColumnIndex("_id")));
+        assertEquals("foobar", cursor.getString(cursor.getColumnIndex(DbParams.KEY_DATA)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(DbParams.KEY_EKEY)));
+        assertTrue(cursor.isNull(cursor.getColumnIndex(DbParams.KEY_PKV)));
+        cursor.close();
+
+        values.put(DbParams.KEY_EKEY, "ekey");
+        values.put(DbParams.KEY_PKV, 2);
+        assertNotEquals(-1, db.insert(DbParams.TABLE_EVENTS, "_id", values));
+        db.close();
+        context.deleteDatabase(databaseName);
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.sensorsdata.analytics.android.sdk.encrypt.SensorsDataEncrypt;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@RunWith(AndroidJUnit4.class)
+public class EncryptDataOperationTest {
+    private Context mContext;
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mDirectory = new File(mContext.getCacheDir(), "sa_encrypt_data_test");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    /**
+     * ekey、pkv 单独存储的数据按 (pkv, ekey) 分组，保持首次出现的顺序，payload 不解析直接拼接
+     */
+    @Test
+    public void queryData_groupByKey() throws Exception {
+        EncryptDataOperation operation = new EncryptDataOperation(mContext, new SensorsDataEncrypt(mContext, null));
+        JournalEventStorage storage = new JournalEventStorage(mDirectory);
+        operation.setEventStorage(storage);
+        storage.insert(buildValues("payload1", "ekeyA", 1));
+        storage.insert(buildValues("payload2", "ekeyB", 1));
+        storage.insert(buildValues("payload3", "ekeyA", 1));
+        long lastId = storage.insert(buildValues("payload4", "ekeyA", 2));
+
+        String[] result = operation.queryData(DbParams.getInstance(mContext.getPackageName()).getEventUri(), 10);
+        assertNotNull(result);
+        assertEquals(String.valueOf(lastId), result[0]);
+        assertEquals(DbParams.GZIP_DATA_ENCRYPT, result[2]);
+        assertEquals("4", result[3]);
+
+        JSONArray groups = new JSONArray(result[1]);
+        assertEquals(3, groups.length());
+        assertGroup(groups.getJSONObject(0), "ekeyA", 1, "payload1", "payload3");
+        assertGroup(groups.getJSONObject(1), "ekeyB", 1, "payload2");
+        assertGroup(groups.getJSONObject(2), "ekeyA", 2, "payload4");
+    }
+
+    private static ContentValues buildValues(String payload, String ekey, int pkv) {
+        ContentValues values = new ContentValues();
+        values.put(DbParams.KEY_DATA, payload);
+        values.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        values.put(DbParams.KEY_EKEY, ekey);
+        values.put(DbParams.KEY_PKV, pkv);
+        return values;
+    }
+
+    private static void assertGroup(JSONObject group, String ekey, int pkv, String... payloads) throws Exception {
+        assertEquals(ekey, group.getString("ekey"));
+        assertEquals(pkv, group.getInt("pkv"));
+        JSONArray payloadArray = group.getJSONArray("payloads");
+        assertEquals(payloads.length, payloadArray.length());
+        for (int i = 0; i < payloads.length; i++) {
+            assertEquals(payloads[i], payloadArray.getString(i));
+        }
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Created by dengshiwei on 2020/06/23.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "sa_event_journal_test");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    /**
+     * 按写入顺序读取，确认后条数减少
+     */
+    @Test
+    public void appendReadAck() {
+        EventJournal journal = new EventJournal(mDirectory);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, journal.append(i, "{\"index\":" + i + "}", null, null));
+        }
+        assertEquals(3, journal.count());
+        List<EventJournal.Record> records = journal.read(2);
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).mId);
+        assertEquals("{\"index\":2}", records.get(1).mData);
+
+        assertEquals(2, journal.ack(records.get(1).mId));
+        assertEquals(1, journal.count());
+        records = journal.read(10);
+        assertEquals(1, records.size());
+        assertEquals(3, records.get(0).mId);
+        assertEquals(3, records.get(0).mCreatedAt);
+        assertNull(records.get(0).mEkey);
+        assertNull(records.get(0).mPkv);
+
+        assertEquals(1, journal.ackAll());
+        assertEquals(0, journal.count());
+        assertEquals(0, journal.read(10).size());
+        assertEquals(4, journal.append(4, "{}", null, null));
+    }
+
+    /**
+     * 重新加载后从确认位置继续读取，记录 ID 不重复
+     */
+    @Test
+    public void reload() {
+        EventJournal journal = new EventJournal(mDirectory);
+        for (int i = 1; i <= 5; i++) {
+            journal.append(i, "payload" + i, "ekey" + i, i);
+        }
+        journal.ack(2);
+
+        journal = new EventJournal(mDirectory);
+        assertEquals(3, journal.count());
+        List<EventJournal.Record> records = journal.read(10);
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(0).mId);
+        assertEquals("ekey3", records.get(0).mEkey);
+        assertEquals(Integer.valueOf(3), records.get(0).mPkv);
+        assertEquals(6, journal.append(6, "payload6", null, null));
+    }
+
+    /**
+     * 写满后创建新的分段，确认后删除分段文件
+     */
+    @Test
+    public void segments() {
+        EventJournal journal = new EventJournal(mDirectory, 256);
+        long lastId = 0;
+        for (int i = 0; i < 20; i++) {
+            lastId = journal.append(i, "{\"event\":\"test\",\"index\":" + i + "}", null, null);
+        }
+        assertTrue(segmentCount() > 1);
+        assertEquals(20, journal.count());
+
+        journal.ack(lastId - 1);
+        assertEquals(1, journal.count());
+        assertEquals(1, segmentCount());
+        assertEquals(lastId, journal.read(10).get(0).mId);
+
+        journal = new EventJournal(mDirectory, 256);
+        assertEquals(1, journal.count());
+        assertEquals(lastId, journal.read(10).get(0).mId);
+    }
+
+    /**
+     * 最后一条记录损坏时丢弃该记录，之后的写入覆盖损坏的内容
+     */
+    @Test
+    public void corruptedTail() throws Exception {
+        EventJournal journal = new EventJournal(mDirectory);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(i, "data" + i, null, null);
+        }
+        File segment = new File(mDirectory, "1.seg");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        // 每条记录 35 个字节，修改第三条记录的最后一个字节
+        raf.seek(35 * 3 - 1);
+        raf.write('x');
+        raf.close();
+
+        journal = new EventJournal(mDirectory);
+        assertEquals(2, journal.count());
+        assertEquals(3, journal.append(4, "data4", null, null));
+        journal = new EventJournal(mDirectory);
+        List<EventJournal.Record> records = journal.read(10);
+        assertEquals(3, records.size());
+        assertEquals("data4", records.get(2).mData);
+    }
+
+    /**
+     * 字节数随写入与确认累计，淘汰时按字节数计算需要确认的记录
+     */
+    @Test
+    public void evictionBytes() {
+        EventJournal journal = new EventJournal(mDirectory);
+        for (int i = 1; i <= 4; i++) {
+            journal.append(i, "data" + i, null, null);
+        }
+        // 每条记录 35 个字节
+        assertEquals(140, journal.size());
+        assertEquals(2, journal.findEvictionId(50));
+        assertEquals(2, journal.ack(2));
+        assertEquals(70, journal.size());
+        assertEquals(4, journal.findEvictionId(1000));
+
+        journal = new EventJournal(mDirectory);
+        assertEquals(70, journal.size());
+        journal.ackAll();
+        assertEquals(0, journal.size());
+        assertEquals(-1, journal.findEvictionId(1));
+    }
+
+    /**
+     * 确认位置写入中断或者损坏时，使用完整的确认位置，已确认的记录不会重新读取
+     */
+    @Test
+    public void corruptedCheckpoint() throws Exception {
+        EventJournal journal = new EventJournal(mDirectory);
+        for (int i = 1; i <= 10; i++) {
+            journal.append(i, "data" + i, null, null);
+        }
+        assertEquals(6, journal.ack(6));
+
+        // 写入临时文件时崩溃，只写入了一部分
+        writeFile(new File(mDirectory, "checkpoint.tmp"), new byte[10]);
+        journal = new EventJournal(mDirectory);
+        assertEquals(4, journal.count());
+        assertEquals(7, journal.read(10).get(0).mId);
+        assertFalse(new File(mDirectory, "checkpoint.tmp").exists());
+
+        // 临时文件同步后、重命名前崩溃，并且之前的确认位置已损坏
+        assertEquals(2, journal.ack(8));
+        File checkpoint = new File(mDirectory, "checkpoint");
+        assertTrue(checkpoint.renameTo(new File(mDirectory, "checkpoint.tmp")));
+        writeFile(checkpoint, new byte[28]);
+        journal = new EventJournal(mDirectory);
+        assertEquals(2, journal.count());
+        List<EventJournal.Record> records = journal.read(10);
+        assertEquals(2, records.size());
+        assertEquals(9, records.get(0).mId);
+        assertEquals(11, journal.append(11, "data11", null, null));
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.write(bytes);
+        raf.close();
+    }
+
+    private int segmentCount() {
+        File[] files = mDirectory.listFiles();
+        int count = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".seg")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
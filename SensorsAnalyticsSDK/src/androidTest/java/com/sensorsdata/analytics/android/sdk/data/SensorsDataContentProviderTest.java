@@ -371,4 +371,80 @@ public class SensorsDataContentProviderTest {
         }
     }
 
+    @Test
+    public void testEventsCount() {
+        ContentResolver resolver = mProviderRule.getResolver();
+        assertNotNull(resolver);
+        resolver.delete(dbParams.getEventUri(), null, null);
+        assertEquals(0, queryEventsCount(resolver));
+
+        ContentValues[] valuesArray = new ContentValues[]{new ContentValues(), new ContentValues(), new ContentValues()};
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i].put(DbParams.KEY_DATA, "foobar" + i);
+            valuesArray[i].put(DbParams.KEY_CREATED_AT, System.currentTimeMillis() + i);
+        }
+        resolver.bulkInsert(dbParams.getEventUri(), valuesArray);
+        assertEquals(3, queryEventsCount(resolver));
+        assertEquals(21, queryEventsBytes(resolver));
+
+        Cursor cursor = resolver.query(dbParams.getEventUri(), null, null, null, DbParams.KEY_CREATED_AT + " ASC LIMIT 2");
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToLast());
+        String lastId = cursor.getString(cursor.getColumnIndex("_id"));
+        cursor.close();
+        resolver.delete(dbParams.getEventUri(), "_id <= ?", new String[]{lastId});
+        assertEquals(1, queryEventsCount(resolver));
+        assertEquals(7, queryEventsBytes(resolver));
+
+        resolver.delete(dbParams.getEventUri(), null, null);
+        assertEquals(0, queryEventsCount(resolver));
+        assertEquals(0, queryEventsBytes(resolver));
+    }
+
+    /**
+     * bulkInsert 中未写入的事件不计入条数和字节数
+     */
+    @Test
+    public void testBulkInsertEventsCount() {
+        ContentResolver resolver = mProviderRule.getResolver();
+        assertNotNull(resolver);
+        resolver.delete(dbParams.getEventUri(), null, null);
+
+        ContentValues[] valuesArray = new ContentValues[]{new ContentValues(), new ContentValues(), new ContentValues()};
+        valuesArray[0].put(DbParams.KEY_DATA, "foo");
+        valuesArray[0].put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        // 缺少 created_at，不会写入
+        valuesArray[1].put(DbParams.KEY_DATA, "foobar");
+        valuesArray[2].put(DbParams.KEY_DATA, "bar");
+        valuesArray[2].put(DbParams.KEY_CREATED_AT, System.currentTimeMillis() + 1);
+        assertEquals(2, resolver.bulkInsert(dbParams.getEventUri(), valuesArray));
+        assertEquals(2, queryEventsCount(resolver));
+        assertEquals(6, queryEventsBytes(resolver));
+
+        Cursor cursor = resolver.query(dbParams.getEventUri(), null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        resolver.delete(dbParams.getEventUri(), null, null);
+        assertEquals(0, queryEventsCount(resolver));
+    }
+
+    private int queryEventsCount(ContentResolver resolver) {
+        Cursor cursor = resolver.query(dbParams.getEventsCountUri(), null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToNext());
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private long queryEventsBytes(ContentResolver resolver) {
+        Cursor cursor = resolver.query(dbParams.getEventsCountUri(), null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToNext());
+        long bytes = cursor.getLong(cursor.getColumnIndex(DbParams.KEY_EVENTS_BYTES));
+        cursor.close();
+        return bytes;
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.encrypt;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SensorsDataEncryptTest {
+    /**
+     * 本地加密的数据可以被另一个实例解密，密钥只生成一次；相同数据每次加密的结果不同
+     */
+    @Test
+    public void localData() {
+        Context context = ApplicationProvider.getApplicationContext();
+        String data = "{\"event\":\"test\",\"properties\":{\"name\":\"传感器\"}}";
+        SensorsDataEncrypt encrypt = new SensorsDataEncrypt(context, null, true);
+        String encrypted = encrypt.encryptLocalData(data);
+        assertNotNull(encrypted);
+        assertTrue(encrypt.isLocalData(encrypted));
+        assertNotEquals(encrypted, encrypt.encryptLocalData(data));
+        assertEquals(data, encrypt.decryptLocalData(encrypted));
+
+        assertEquals(data, new SensorsDataEncrypt(context, null, true).decryptLocalData(encrypted));
+    }
+}
@@ -158,8 +158,73 @@ abstract class AbstractSAConfigOptions {
      */
     boolean mEnableEncrypt = false;
 
+    /**
+     * 是否在上报时对整批数据加密
+     */
+    boolean mEnableBatchEncrypt = false;
+
     /**
      * 密钥存储相关接口
      */
     IPersistentSecretKey mPersistentSecretKey;
-}
\ No newline at end of file
+
+    /**
+     * 事件批量入库的最大条数，小于等于 1 时逐条入库
+     */
+    int mBatchInsertSize;
+
+    /**
+     * 事件批量入库的最长等待时间，单位毫秒
+     */
+    int mBatchInsertInterval = 1000;
+
+    /**
+     * 每次上报的最小条数
+     */
+    int mMinFlushBatchSize = FlushBatchSizer.DEFAULT_BATCH_SIZE;
+
+    /**
+     * 每次上报的最大条数，大于最小条数时根据网络状况动态调整
+     */
+    int mMaxFlushBatchSize = FlushBatchSizer.DEFAULT_BATCH_SIZE;
+
+    /**
+     * 是否以 GZIP 二进制请求体上报数据
+     */
+    boolean mEnableBinaryFlush = false;
+
+    /**
+     * 采集任务队列容量
+     */
+    int mTrackTaskQueueCapacity = TrackTaskManager.DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * 采集任务队列已满时的处理策略
+     */
+    int mTrackTaskOverflowPolicy = TrackTaskOverflowPolicy.DROP_OLDEST;
+
+    /**
+     * $lib_detail 的采样率，0 表示不采集，N 表示每 N 条事件采集 1 次，默认每 10 条事件采集 1 次
+     */
+    int mLibDetailSampleRate = 10;
+
+    /**
+     * 动态公共属性的缓存有效期，单位毫秒，0 表示不缓存
+     */
+    long mDynamicSuperPropertiesTTL = 0;
+
+    /**
+     * 动态公共属性回调的超时时间，单位毫秒，0 表示不限制
+     */
+    long mDynamicSuperPropertiesTimeout = 0;
+
+    /**
+     * 前台定时保存 $AppEnd 信息的时间间隔，单位毫秒
+     */
+    int mAppEndCheckpointInterval = 15 * 1000;
+
+    /**
+     * 是否使用内存映射的日志文件存储事件，只在未开启多进程时生效
+     */
+    boolean mEnableEventJournal = false;
+}
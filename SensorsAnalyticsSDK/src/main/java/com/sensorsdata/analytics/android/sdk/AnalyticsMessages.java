@@ -18,12 +18,12 @@
 package com.sensorsdata.analytics.android.sdk;
 
 import android.content.Context;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.widget.Toast;
 
@@ -33,7 +33,6 @@ import com.sensorsdata.analytics.android.sdk.exceptions.ConnectErrorException;
 import com.sensorsdata.analytics.android.sdk.exceptions.DebugModeException;
 import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
 import com.sensorsdata.analytics.android.sdk.exceptions.ResponseErrorException;
-import com.sensorsdata.analytics.android.sdk.util.Base64Coder;
 import com.sensorsdata.analytics.android.sdk.util.JSONUtils;
 import com.sensorsdata.analytics.android.sdk.util.NetworkUtils;
 
@@ -47,10 +46,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -66,10 +66,37 @@ class AnalyticsMessages {
     private static final String TAG = "SA.AnalyticsMessages";
     private static final int FLUSH_QUEUE = 3;
     private static final int DELETE_ALL = 4;
+    private static final int COMMIT_EVENTS = 5;
+    /* HTTP 状态码 413，请求体过大 */
+    private static final int HTTP_ENTITY_TOO_LARGE = 413;
+    /* 服务端是否支持二进制上报 */
+    private static final int BINARY_FLUSH_UNKNOWN = 0;
+    private static final int BINARY_FLUSH_SUPPORTED = 1;
+    private static final int BINARY_FLUSH_UNSUPPORTED = 2;
+    /* 服务端不支持二进制上报时，间隔该时长后重新尝试，单位毫秒 */
+    private static final long BINARY_FLUSH_RETRY_INTERVAL = 60 * 60 * 1000;
     private static final Map<Context, AnalyticsMessages> S_INSTANCES = new HashMap<>();
     private final Worker mWorker;
     private final Context mContext;
     private final DbAdapter mDbAdapter;
+    /* 等待批量入库的事件，通过 mDbAdapter 加锁访问 */
+    private final List<JSONObject> mPendingEvents = new ArrayList<>();
+    /* 计算每次上报的条数，只在 Worker 线程中使用 */
+    private final FlushBatchSizer mFlushBatchSizer = new FlushBatchSizer();
+    /* 累计的上报请求数，只在 Worker 线程中写入 */
+    private volatile long mRequestCount;
+    /* 累计的可能复用了上一次保活连接的请求数，只在 Worker 线程中写入 */
+    private volatile long mReusedConnectionCount;
+    /* 上一次请求结束后保留在连接池中的地址，为空表示连接已断开 */
+    private String mKeepAliveAddress;
+    /* 当前数据接收地址是否支持二进制上报，只在 Worker 线程中使用 */
+    private int mBinaryFlushState = BINARY_FLUSH_UNKNOWN;
+    /* mBinaryFlushState 对应的数据接收地址 */
+    private String mBinaryFlushServerUrl;
+    /* 不支持二进制上报时，下一次重新尝试的时间，SystemClock.elapsedRealtime */
+    private long mBinaryFlushRetryTime;
+    /* 上报相关配置的快照，由 SensorsDataAPI 在配置变化时发布 */
+    private volatile FlushConfig mFlushConfig = FlushConfig.DEFAULT;
 
     /**
      * 不要直接调用，通过 getInstance 方法获取实例
@@ -114,38 +141,112 @@ class AnalyticsMessages {
         return buffer.toByteArray();
     }
 
+    /**
+     * 更新上报相关配置的快照
+     *
+     * @param flushConfig 配置快照
+     */
+    void setFlushConfig(FlushConfig flushConfig) {
+        mFlushConfig = flushConfig;
+    }
+
     void enqueueEventMessage(final String type, final JSONObject eventJson) {
         try {
+            final FlushConfig flushConfig = mFlushConfig;
             synchronized (mDbAdapter) {
-                int ret = mDbAdapter.addJSON(eventJson);
+                int ret;
+                int batchInsertSize = flushConfig.batchInsertSize;
+                if (batchInsertSize > 1 && !flushConfig.isDebugMode()) {
+                    mPendingEvents.add(eventJson);
+                    if (mPendingEvents.size() < batchInsertSize && !isCommitImmediately(type, eventJson)) {
+                        final Message m = Message.obtain();
+                        m.what = COMMIT_EVENTS;
+                        mWorker.runMessageOnce(m, flushConfig.batchInsertInterval);
+                        return;
+                    }
+                    ret = commitPendingEvents();
+                } else {
+                    ret = mDbAdapter.addJSON(eventJson);
+                }
                 if (ret < 0) {
                     String error = "Failed to enqueue the event: " + eventJson;
-                    if (SensorsDataAPI.sharedInstance(mContext).isDebugMode()) {
+                    if (flushConfig.isDebugMode()) {
                         throw new DebugModeException(error);
                     } else {
                         SALog.i(TAG, error);
                     }
                 }
+                scheduleFlush(type, ret);
+            }
+        } catch (Exception e) {
+            SALog.i(TAG, "enqueueEventMessage error:" + e);
+        }
+    }
 
-                final Message m = Message.obtain();
-                m.what = FLUSH_QUEUE;
+    /**
+     * 根据入库结果决定上报时机
+     *
+     * @param type 事件类型
+     * @param ret 入库后的数据条数或错误码
+     */
+    private void scheduleFlush(String type, int ret) {
+        final Message m = Message.obtain();
+        m.what = FLUSH_QUEUE;
+        final FlushConfig flushConfig = mFlushConfig;
+
+        if (flushConfig.isDebugMode() || ret ==
+                DbParams.DB_OUT_OF_MEMORY_ERROR) {
+            mWorker.runMessage(m);
+        } else {
+            // track_signup 立即发送
+            if (type.equals("track_signup") || ret > flushConfig.flushBulkSize) {
+                mWorker.runMessage(m);
+            } else {
+                final int interval = flushConfig.flushInterval;
+                mWorker.runMessageOnce(m, interval);
+            }
+        }
+    }
 
-                if (SensorsDataAPI.sharedInstance(mContext).isDebugMode() || ret ==
-                        DbParams.DB_OUT_OF_MEMORY_ERROR) {
-                    mWorker.runMessage(m);
-                } else {
-                    // track_signup 立即发送
-                    if (type.equals("track_signup") || ret > SensorsDataAPI.sharedInstance(mContext)
-                            .getFlushBulkSize()) {
-                        mWorker.runMessage(m);
-                    } else {
-                        final int interval = SensorsDataAPI.sharedInstance(mContext).getFlushInterval();
-                        mWorker.runMessageOnce(m, interval);
-                    }
+    /**
+     * $AppEnd、AppCrashed 以及 track_signup 事件不等待批量入库，避免进程退出时丢失数据
+     */
+    private boolean isCommitImmediately(String type, JSONObject eventJson) {
+        if ("track_signup".equals(type)) {
+            return true;
+        }
+        String eventName = eventJson.optString("event");
+        return "$AppEnd".equals(eventName) || "AppCrashed".equals(eventName);
+    }
+
+    /**
+     * 将缓存的事件通过一个事务批量入库，调用方需持有 mDbAdapter 锁
+     *
+     * @return 入库后的数据条数或错误码
+     */
+    private int commitPendingEvents() {
+        if (mPendingEvents.isEmpty()) {
+            return 0;
+        }
+        int ret = mDbAdapter.addJSON(mPendingEvents);
+        mPendingEvents.clear();
+        return ret;
+    }
+
+    private void commitPendingEventsAndScheduleFlush() {
+        try {
+            synchronized (mDbAdapter) {
+                if (mPendingEvents.isEmpty()) {
+                    return;
                 }
+                int ret = commitPendingEvents();
+                if (ret < 0) {
+                    SALog.i(TAG, "Failed to commit the pending events");
+                }
+                scheduleFlush(EventType.TRACK.getEventType(), ret);
             }
         } catch (Exception e) {
-            SALog.i(TAG, "enqueueEventMessage error:" + e);
+            SALog.i(TAG, "commitPendingEvents error:" + e);
         }
     }
 
@@ -170,14 +271,45 @@ class AnalyticsMessages {
         mWorker.runMessage(m);
     }
 
+    /**
+     * 获取累计的上报请求数
+     *
+     * @return 请求数
+     */
+    public long getFlushRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * 获取累计的可能复用了连接的上报请求数。
+     * HttpURLConnection 不提供连接是否被复用的信息，这里统计的是请求地址与上一次完整读取响应、保留在连接池中的地址相同的请求，
+     * 连接池可能已经关闭该连接，实际复用数不超过该值
+     *
+     * @return 请求数
+     */
+    public long getLikelyReusedConnectionCount() {
+        return mReusedConnectionCount;
+    }
+
     private void sendData() {
+        String networkType;
+        final FlushConfig flushConfig = mFlushConfig;
         try {
-            if (!SensorsDataAPI.sharedInstance(mContext).isNetworkRequestEnable()) {
+            // 上报前先将缓存中的事件入库
+            synchronized (mDbAdapter) {
+                commitPendingEvents();
+            }
+
+            if (SensorsDataAPI.isSDKDisabled()) {
+                return;
+            }
+
+            if (!flushConfig.networkRequestEnable) {
                 SALog.i(TAG, "NetworkRequest 已关闭，不发送数据！");
                 return;
             }
 
-            if (TextUtils.isEmpty(SensorsDataAPI.sharedInstance(mContext).getServerUrl())) {
+            if (TextUtils.isEmpty(flushConfig.serverUrl)) {
                 SALog.i(TAG, "Server url is null or empty.");
                 return;
             }
@@ -188,14 +320,14 @@ class AnalyticsMessages {
             }
 
             //不符合同步数据的网络策略
-            String networkType = NetworkUtils.networkType(mContext);
-            if (!NetworkUtils.isShouldFlush(networkType, SensorsDataAPI.sharedInstance(mContext).getFlushNetworkPolicy())) {
+            networkType = NetworkUtils.networkType(mContext);
+            if (!NetworkUtils.isShouldFlush(networkType, flushConfig.flushNetworkPolicy)) {
                 SALog.i(TAG, String.format("您当前网络为 %s，无法发送数据，请确认您的网络发送策略！", networkType));
                 return;
             }
 
             // 如果开启多进程上报
-            if (SensorsDataAPI.sharedInstance().isMultiProcessFlushData()) {
+            if (flushConfig.multiProcessFlushData) {
                 // 已经有进程在上报
                 if (DbAdapter.getInstance().isSubProcessFlushing()) {
                     return;
@@ -208,17 +340,24 @@ class AnalyticsMessages {
             SALog.printStackTrace(e);
             return;
         }
+        long requestCountStart = mRequestCount;
+        long reusedConnectionCountStart = mReusedConnectionCount;
         int count = 100;
         Toast toast = null;
         while (count > 0) {
             boolean deleteEvents = true;
+            boolean retryBatch = false;
             String[] eventsData;
+            // 上报过程中配置可能发生变化，每一批数据读取最新的配置
+            final FlushConfig batchConfig = mFlushConfig;
             synchronized (mDbAdapter) {
-                if (SensorsDataAPI.sharedInstance(mContext).isDebugMode()) {
+                if (batchConfig.isDebugMode()) {
                     /* debug 模式下服务器只允许接收 1 条数据 */
                     eventsData = mDbAdapter.generateDataString(DbParams.TABLE_EVENTS, 1);
                 } else {
-                    eventsData = mDbAdapter.generateDataString(DbParams.TABLE_EVENTS, 50);
+                    int batchSize = mFlushBatchSizer.nextBatchSize(networkType,
+                            batchConfig.minFlushBatchSize, batchConfig.maxFlushBatchSize);
+                    eventsData = mDbAdapter.generateDataString(DbParams.TABLE_EVENTS, batchSize);
                 }
             }
 
@@ -233,27 +372,35 @@ class AnalyticsMessages {
             String errorMessage = null;
 
             try {
-                String data = rawMessage;
-                if (DbParams.GZIP_DATA_EVENT.equals(gzip)) {
-                    data = encodeData(rawMessage);
-                }
-
-                if (!TextUtils.isEmpty(data)) {
-                    sendHttpRequest(SensorsDataAPI.sharedInstance(mContext).getServerUrl(), data, gzip, rawMessage, false);
+                if (!TextUtils.isEmpty(rawMessage)) {
+                    long startTime = SystemClock.elapsedRealtime();
+                    FlushRequestBody requestBody = sendFlushRequest(batchConfig.serverUrl, rawMessage, gzip);
+                    mFlushBatchSizer.onSuccess(networkType, parseEventCount(eventsData),
+                            requestBody.getContentLength(), SystemClock.elapsedRealtime() - startTime);
                 }
             } catch (ConnectErrorException e) {
                 deleteEvents = false;
+                mFlushBatchSizer.onFailure(networkType);
                 errorMessage = "Connection error: " + e.getMessage();
             } catch (InvalidDataException e) {
                 errorMessage = "Invalid data: " + e.getMessage();
             } catch (ResponseErrorException e) {
-                deleteEvents = isDeleteEventsByCode(e.getHttpCode());
+                if (e.getHttpCode() == HTTP_ENTITY_TOO_LARGE) {
+                    // 请求体过大时保留数据，减小条数后重新上报，只有单条数据仍然过大时才删除
+                    deleteEvents = !mFlushBatchSizer.onEntityTooLarge(networkType, parseEventCount(eventsData));
+                    retryBatch = !deleteEvents;
+                } else {
+                    deleteEvents = isDeleteEventsByCode(e.getHttpCode());
+                    if (!deleteEvents) {
+                        mFlushBatchSizer.onFailure(networkType);
+                    }
+                }
                 errorMessage = "ResponseErrorException: " + e.getMessage();
             } catch (Exception e) {
                 deleteEvents = false;
                 errorMessage = "Exception: " + e.getMessage();
             } finally {
-                boolean isDebugMode = SensorsDataAPI.sharedInstance(mContext).isDebugMode();
+                boolean isDebugMode = batchConfig.isDebugMode();
                 if (!TextUtils.isEmpty(errorMessage)) {
                     if (isDebugMode || SALog.isLogEnabled()) {
                         SALog.i(TAG, errorMessage);
@@ -279,60 +426,122 @@ class AnalyticsMessages {
                 if (deleteEvents || isDebugMode) {
                     count = mDbAdapter.cleanupEvents(lastId);
                     SALog.i(TAG, String.format(Locale.CHINA, "Events flushed. [left = %d]", count));
-                } else {
+                } else if (!retryBatch) {
                     count = 0;
                 }
 
             }
         }
-        if (SensorsDataAPI.sharedInstance().isMultiProcessFlushData()) {
+        if (mRequestCount > requestCountStart) {
+            SALog.i(TAG, String.format(Locale.CHINA, "Flush connections. [requests = %d, likely reused = %d]",
+                    mRequestCount - requestCountStart, mReusedConnectionCount - reusedConnectionCountStart));
+        }
+        if (flushConfig.multiProcessFlushData) {
             DbAdapter.getInstance().commitSubProcessFlushState(false);
         }
     }
 
-    private void sendHttpRequest(String path, String data, String gzip, String rawMessage, boolean isRedirects) throws ConnectErrorException, ResponseErrorException {
+    /**
+     * 获取连接地址，协议、域名和端口都相同时才能复用连接
+     */
+    private static String getConnectionAddress(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * 上报一批数据。开启二进制上报时先尝试二进制格式，服务端返回 400 或 415 时认为不支持，
+     * 改用表单格式重新发送，一段时间后再重新尝试二进制格式
+     *
+     * @return 实际发送的请求体
+     */
+    private FlushRequestBody sendFlushRequest(String serverUrl, String rawMessage, String gzip)
+            throws ConnectErrorException, ResponseErrorException, InvalidDataException {
+        FlushRequestBody requestBody = new FlushRequestBody(rawMessage, gzip, isBinaryFlush(serverUrl));
+        try {
+            sendHttpRequest(serverUrl, requestBody, rawMessage, false);
+        } catch (ResponseErrorException e) {
+            int httpCode = e.getHttpCode();
+            if (!requestBody.isBinary() || (httpCode != HttpURLConnection.HTTP_BAD_REQUEST
+                    && httpCode != HttpURLConnection.HTTP_UNSUPPORTED_TYPE)) {
+                throw e;
+            }
+            SALog.i(TAG, "Binary flush is not supported by the server, fallback to form data.");
+            mBinaryFlushState = BINARY_FLUSH_UNSUPPORTED;
+            mBinaryFlushRetryTime = SystemClock.elapsedRealtime() + BINARY_FLUSH_RETRY_INTERVAL;
+            requestBody = new FlushRequestBody(rawMessage, gzip, false);
+            sendHttpRequest(serverUrl, requestBody, rawMessage, false);
+            return requestBody;
+        }
+        if (requestBody.isBinary()) {
+            mBinaryFlushState = BINARY_FLUSH_SUPPORTED;
+        }
+        return requestBody;
+    }
+
+    private boolean isBinaryFlush(String serverUrl) {
+        if (!mFlushConfig.binaryFlushEnabled) {
+            return false;
+        }
+        if (!serverUrl.equals(mBinaryFlushServerUrl)) {
+            mBinaryFlushServerUrl = serverUrl;
+            mBinaryFlushState = BINARY_FLUSH_UNKNOWN;
+        } else if (mBinaryFlushState == BINARY_FLUSH_UNSUPPORTED
+                && SystemClock.elapsedRealtime() >= mBinaryFlushRetryTime) {
+            // 服务端可能已经升级，重新尝试二进制格式
+            mBinaryFlushState = BINARY_FLUSH_UNKNOWN;
+        }
+        return mBinaryFlushState != BINARY_FLUSH_UNSUPPORTED;
+    }
+
+    private int parseEventCount(String[] eventsData) {
+        try {
+            if (eventsData.length > 3) {
+                return Integer.parseInt(eventsData[3]);
+            }
+        } catch (NumberFormatException e) {
+            SALog.printStackTrace(e);
+        }
+        return 0;
+    }
+
+    private void sendHttpRequest(String path, FlushRequestBody requestBody, String rawMessage, boolean isRedirects) throws ConnectErrorException, ResponseErrorException {
         HttpURLConnection connection = null;
         InputStream in = null;
         OutputStream out = null;
         BufferedOutputStream bout = null;
+        /* 响应完整读取后不断开连接，由 HttpURLConnection 放回连接池供下一次请求复用 */
+        boolean keepAlive = false;
         try {
             final URL url = new URL(path);
+            final String address = getConnectionAddress(url);
             connection = (HttpURLConnection) url.openConnection();
             if (connection == null) {
                 SALog.i(TAG, String.format("can not connect %s, it shouldn't happen", url.toString()), null);
                 return;
             }
+            mRequestCount++;
+            if (address.equals(mKeepAliveAddress)) {
+                mReusedConnectionCount++;
+            }
+            mKeepAliveAddress = null;
             if (SensorsDataAPI.sharedInstance().getSSLSocketFactory() != null && connection instanceof HttpsURLConnection) {
                 ((HttpsURLConnection) connection).setSSLSocketFactory(SensorsDataAPI.sharedInstance().getSSLSocketFactory());
             }
             connection.setInstanceFollowRedirects(false);
-            if (SensorsDataAPI.sharedInstance(mContext).getDebugMode() == SensorsDataAPI.DebugMode.DEBUG_ONLY) {
+            if (mFlushConfig.debugMode == SensorsDataAPI.DebugMode.DEBUG_ONLY) {
                 connection.addRequestProperty("Dry-Run", "true");
             }
 
             connection.setRequestProperty("Cookie", SensorsDataAPI.sharedInstance(mContext).getCookie(false));
 
-            Uri.Builder builder = new Uri.Builder();
-            //先校验crc
-            if (!TextUtils.isEmpty(data)) {
-                builder.appendQueryParameter("crc", String.valueOf(data.hashCode()));
-            }
-
-            builder.appendQueryParameter("gzip", gzip);
-            builder.appendQueryParameter("data_list", data);
-
-            String query = builder.build().getEncodedQuery();
-            if (TextUtils.isEmpty(query)) {
-                return;
-            }
-
-            connection.setFixedLengthStreamingMode(query.getBytes(CHARSET_UTF8).length);
+            // 请求体边编码边写入，不再生成完整的请求字符串
+            requestBody.applyTo(connection);
             connection.setDoOutput(true);
             connection.setRequestMethod("POST");
             out = connection.getOutputStream();
             bout = new BufferedOutputStream(out);
-            bout.write(query.getBytes(CHARSET_UTF8));
-            bout.flush();
+            requestBody.writeTo(bout);
 
             int responseCode = connection.getResponseCode();
             SALog.i(TAG, "responseCode: " + responseCode);
@@ -340,7 +549,7 @@ class AnalyticsMessages {
                 String location = SensorsDataHttpURLConnectionHelper.getLocation(connection, path);
                 if (!TextUtils.isEmpty(location)) {
                     closeStream(bout, out, null, connection);
-                    sendHttpRequest(location, data, gzip, rawMessage, true);
+                    sendHttpRequest(location, requestBody, rawMessage, true);
                     return;
                 }
             }
@@ -352,6 +561,8 @@ class AnalyticsMessages {
             byte[] responseBody = slurp(in);
             in.close();
             in = null;
+            keepAlive = true;
+            mKeepAliveAddress = address;
 
             String response = new String(responseBody, CHARSET_UTF8);
             if (SALog.isLogEnabled()) {
@@ -374,7 +585,7 @@ class AnalyticsMessages {
         } catch (IOException e) {
             throw new ConnectErrorException(e);
         } finally {
-            closeStream(bout, out, in, connection);
+            closeStream(bout, out, in, keepAlive ? null : connection);
         }
     }
 
@@ -428,30 +639,6 @@ class AnalyticsMessages {
         }
     }
 
-    private String encodeData(final String rawMessage) throws InvalidDataException {
-        GZIPOutputStream gos = null;
-        try {
-            ByteArrayOutputStream os = new ByteArrayOutputStream(rawMessage.getBytes(CHARSET_UTF8).length);
-            gos = new GZIPOutputStream(os);
-            gos.write(rawMessage.getBytes(CHARSET_UTF8));
-            gos.close();
-            byte[] compressed = os.toByteArray();
-            os.close();
-            return new String(Base64Coder.encode(compressed));
-        } catch (IOException exception) {
-            // 格式错误，直接将数据删除
-            throw new InvalidDataException(exception);
-        } finally {
-            if (gos != null) {
-                try {
-                    gos.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        }
-    }
-
     // Worker will manage the (at most single) IO thread associated with
     // this AnalyticsMessages instance.
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
@@ -503,8 +690,13 @@ class AnalyticsMessages {
                 try {
                     if (msg.what == FLUSH_QUEUE) {
                         sendData();
+                    } else if (msg.what == COMMIT_EVENTS) {
+                        commitPendingEventsAndScheduleFlush();
                     } else if (msg.what == DELETE_ALL) {
                         try {
+                            synchronized (mDbAdapter) {
+                                mPendingEvents.clear();
+                            }
                             mDbAdapter.deleteAllEvents();
                         } catch (Exception e) {
                             com.sensorsdata.analytics.android.sdk.SALog.printStackTrace(e);
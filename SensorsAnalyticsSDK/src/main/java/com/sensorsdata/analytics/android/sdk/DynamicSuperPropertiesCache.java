@@ -0,0 +1,201 @@
+/*
+ * Created by dengshiwei on 2020/06/18.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 动态公共属性缓存。回调结果在有效期内复用；设置超时时间后回调在单独的线程中执行，
+ * 超时后使用上一次的结果，回调完成后再更新缓存，避免耗时的回调阻塞采集线程。
+ */
+class DynamicSuperPropertiesCache {
+    private static final String TAG = "SA.DynamicSuperPropertiesCache";
+    /* 有效期，单位毫秒，0 表示不缓存 */
+    private final long mTTL;
+    /* 回调超时时间，单位毫秒，0 表示不限制 */
+    private final long mTimeout;
+    private ThreadPoolExecutor mExecutor;
+    /* 缓存的动态公共属性，null 表示回调返回 null 或者回调异常 */
+    private SuperPropertiesSnapshot mSnapshot;
+    private long mExpireTime;
+    private volatile boolean mInvalidated = true;
+    /* 超时未完成的回调 */
+    private LoadTask mPendingTask;
+    /* 回调次数、缓存命中次数、超时次数、回调总耗时以及最大耗时 */
+    private int mLoadCount;
+    private int mHitCount;
+    private int mTimeoutCount;
+    private long mTotalLoadTime;
+    private long mMaxLoadTime;
+
+    DynamicSuperPropertiesCache(long ttl, long timeout) {
+        this.mTTL = Math.max(0, ttl);
+        this.mTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * 获取动态公共属性
+     *
+     * @param loader 执行动态公共属性回调并校验属性
+     * @return 动态公共属性，每次返回新的 JSONObject；回调异常或者首次回调超时时返回 null
+     */
+    synchronized JSONObject get(Callable<JSONObject> loader) {
+        long now = SystemClock.elapsedRealtime();
+        if (mPendingTask != null) {
+            if (mPendingTask.isDone()) {
+                // 超时的回调已完成，直接使用该结果
+                onLoaded(mPendingTask);
+                mPendingTask = null;
+                if (!mInvalidated) {
+                    return toJSONObject();
+                }
+            } else {
+                // 上一次回调仍未完成，不重复执行
+                mHitCount++;
+                return toJSONObject();
+            }
+        }
+        if (!mInvalidated && now < mExpireTime) {
+            mHitCount++;
+            return toJSONObject();
+        }
+
+        mInvalidated = false;
+        LoadTask task = new LoadTask(loader);
+        if (mTimeout == 0) {
+            task.run();
+            onLoaded(task);
+            return toJSONObject();
+        }
+        try {
+            getExecutor().execute(task);
+            task.get(mTimeout, TimeUnit.MILLISECONDS);
+            onLoaded(task);
+        } catch (TimeoutException e) {
+            mTimeoutCount++;
+            mPendingTask = task;
+            SALog.i(TAG, "getDynamicSuperProperties timeout, use last result. [timeout = " + mTimeout + "ms]");
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return toJSONObject();
+    }
+
+    /**
+     * 使缓存失效，下一条事件重新执行回调
+     */
+    void invalidate() {
+        mInvalidated = true;
+    }
+
+    /**
+     * 回调耗时统计
+     *
+     * @return 统计信息
+     */
+    synchronized DynamicSuperPropertiesStats getStats() {
+        return new DynamicSuperPropertiesStats(mLoadCount, mHitCount, mTimeoutCount, mTotalLoadTime, mMaxLoadTime);
+    }
+
+    private void onLoaded(LoadTask task) {
+        long loadTime = task.mLoader.mCostTime;
+        mLoadCount++;
+        mTotalLoadTime += loadTime;
+        mMaxLoadTime = Math.max(mMaxLoadTime, loadTime);
+        mExpireTime = SystemClock.elapsedRealtime() + mTTL;
+        try {
+            mSnapshot = SuperPropertiesSnapshot.create(task.get());
+        } catch (ExecutionException e) {
+            mSnapshot = null;
+            SALog.printStackTrace(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (Exception e) {
+            mSnapshot = null;
+            SALog.printStackTrace(e);
+        }
+        if (mTimeout > 0 && loadTime > mTimeout) {
+            SALog.i(TAG, "getDynamicSuperProperties cost " + loadTime + "ms " + getStats());
+        }
+    }
+
+    private JSONObject toJSONObject() {
+        return mSnapshot == null ? null : mSnapshot.toJSONObject();
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, ThreadNameConstants.THREAD_DYNAMIC_SUPER_PROPERTIES);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
+    /**
+     * 记录回调耗时的任务，耗时在回调线程中计算，不包含等待时间
+     */
+    private static class LoadTask extends FutureTask<JSONObject> {
+        private final TimedLoader mLoader;
+
+        LoadTask(Callable<JSONObject> loader) {
+            this(new TimedLoader(loader));
+        }
+
+        private LoadTask(TimedLoader loader) {
+            super(loader);
+            this.mLoader = loader;
+        }
+    }
+
+    private static class TimedLoader implements Callable<JSONObject> {
+        private final Callable<JSONObject> mCallable;
+        /* 在 FutureTask 设置结果之前写入，isDone 之后可见 */
+        private long mCostTime;
+
+        TimedLoader(Callable<JSONObject> callable) {
+            this.mCallable = callable;
+        }
+
+        @Override
+        public JSONObject call() throws Exception {
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                return mCallable.call();
+            } finally {
+                mCostTime = SystemClock.elapsedRealtime() - startTime;
+            }
+        }
+    }
+}
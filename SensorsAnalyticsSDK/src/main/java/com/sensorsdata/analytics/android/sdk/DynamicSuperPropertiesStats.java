@@ -0,0 +1,84 @@
+/*
+ * Created by dengshiwei on 2020/06/24.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.util.Locale;
+
+/**
+ * 动态公共属性回调的统计信息，获取时的快照，之后不再变化
+ */
+public final class DynamicSuperPropertiesStats {
+    /**
+     * 回调次数
+     */
+    private final int loadCount;
+
+    /**
+     * 使用缓存结果的次数
+     */
+    private final int hitCount;
+
+    /**
+     * 回调超时的次数
+     */
+    private final int timeoutCount;
+
+    /**
+     * 回调总耗时，单位毫秒
+     */
+    private final long totalLoadTime;
+
+    /**
+     * 回调最大耗时，单位毫秒
+     */
+    private final long maxLoadTime;
+
+    DynamicSuperPropertiesStats(int loadCount, int hitCount, int timeoutCount, long totalLoadTime, long maxLoadTime) {
+        this.loadCount = loadCount;
+        this.hitCount = hitCount;
+        this.timeoutCount = timeoutCount;
+        this.totalLoadTime = totalLoadTime;
+        this.maxLoadTime = maxLoadTime;
+    }
+
+    public int getLoadCount() {
+        return loadCount;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getAverageLoadTime() {
+        return loadCount == 0 ? 0 : totalLoadTime / loadCount;
+    }
+
+    public long getMaxLoadTime() {
+        return maxLoadTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "[loads = %d, hits = %d, timeouts = %d, avg = %dms, max = %dms]",
+                loadCount, hitCount, timeoutCount, getAverageLoadTime(), maxLoadTime);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Created by dengshiwei on 2020/06/17.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 判断事件时间是否在首日内。
+ * 根据首日日期和当前时区预先计算首日零点和次日零点，每条事件只需比较两次时间戳；
+ * 时区变化时需要调用 {@link #invalidate()} 重新计算
+ */
+final class FirstDayChecker {
+    private volatile DayRange mDayRange;
+
+    /**
+     * 事件时间是否在首日内
+     *
+     * @param firstDay 首日日期，格式为 yyyy-MM-dd
+     * @param eventTime 事件时间
+     * @return true：首日内或者首日日期为空，false：非首日
+     */
+    boolean isFirstDay(String firstDay, long eventTime) {
+        if (firstDay == null) {
+            return true;
+        }
+        DayRange dayRange = mDayRange;
+        if (dayRange == null || !dayRange.day.equals(firstDay)) {
+            dayRange = DayRange.create(firstDay, TimeZone.getDefault());
+            if (dayRange == null) {
+                SALog.i("SA.FirstDayChecker", "Invalid first day: " + firstDay);
+                return true;
+            }
+            mDayRange = dayRange;
+        }
+        return eventTime >= dayRange.start && eventTime < dayRange.end;
+    }
+
+    /**
+     * 时区变化后重新计算首日范围
+     */
+    void invalidate() {
+        mDayRange = null;
+    }
+
+    private static final class DayRange {
+        final String day;
+        /* 首日零点 */
+        final long start;
+        /* 次日零点，夏令时切换当天不一定是 24 小时之后 */
+        final long end;
+
+        private DayRange(String day, long start, long end) {
+            this.day = day;
+            this.start = start;
+            this.end = end;
+        }
+
+        static DayRange create(String day, TimeZone timeZone) {
+            int[] fields = parseDate(day);
+            if (fields == null) {
+                return null;
+            }
+            // 与格式化首日日期的 SimpleDateFormat 使用相同的日历
+            Calendar calendar = Calendar.getInstance(timeZone, Locale.getDefault());
+            calendar.clear();
+            calendar.set(fields[0], fields[1] - 1, fields[2], 0, 0, 0);
+            long start = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            return new DayRange(day, start, calendar.getTimeInMillis());
+        }
+
+        /**
+         * 解析 yyyy-MM-dd，首日日期使用默认 Locale 格式化，数字可能不是 ASCII 字符
+         */
+        private static int[] parseDate(String day) {
+            int[] fields = new int[3];
+            int index = 0;
+            boolean hasDigit = false;
+            for (int i = 0; i < day.length(); i++) {
+                char c = day.charAt(i);
+                if (c == '-') {
+                    if (!hasDigit || ++index > 2) {
+                        return null;
+                    }
+                    hasDigit = false;
+                    continue;
+                }
+                int digit = Character.digit(c, 10);
+                if (digit < 0) {
+                    return null;
+                }
+                fields[index] = fields[index] * 10 + digit;
+                hasDigit = true;
+            }
+            if (index != 2 || !hasDigit || fields[1] < 1 || fields[1] > 12 || fields[2] < 1 || fields[2] > 31) {
+                return null;
+            }
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Created by dengshiwei on 2020/06/10.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 根据请求体字节数以及各网络类型下的请求耗时、成功率，计算每次上报的数据条数。
+ * 只在 AnalyticsMessages 的 Worker 线程中使用，不做同步处理。
+ */
+class FlushBatchSizer {
+    /* 默认每次上报的条数 */
+    static final int DEFAULT_BATCH_SIZE = 50;
+    /* 请求耗时低于该值时增大请求体，单位毫秒 */
+    private static final long FAST_REQUEST_TIME = 1500;
+    /* 请求耗时高于该值时减小请求体，单位毫秒 */
+    private static final long SLOW_REQUEST_TIME = 5000;
+    /* 请求体字节数的下限 */
+    private static final long MIN_TARGET_BYTES = 4 * 1024;
+    /* 平滑系数 */
+    private static final double SMOOTHING_FACTOR = 0.3;
+    /* 按 413 上限条数连续成功该次数后，上限加倍 */
+    static final int ENTITY_TOO_LARGE_RELAX_COUNT = 10;
+    private final Map<String, NetworkStats> mNetworkStats = new HashMap<>();
+
+    /**
+     * 计算下一次上报的条数
+     *
+     * @param networkType 网络类型，NetworkUtils.networkType 的返回值
+     * @param minBatchSize 最小条数
+     * @param maxBatchSize 最大条数
+     * @return 上报条数
+     */
+    int nextBatchSize(String networkType, int minBatchSize, int maxBatchSize) {
+        NetworkStats stats = getNetworkStats(networkType);
+        if (minBatchSize >= maxBatchSize) {
+            return Math.min(maxBatchSize, stats.entityTooLargeLimit);
+        }
+        int batchSize = DEFAULT_BATCH_SIZE;
+        if (stats.bytesPerEvent > 0) {
+            batchSize = (int) Math.min(Integer.MAX_VALUE, stats.targetBytes / stats.bytesPerEvent);
+        }
+        return Math.min(Math.max(minBatchSize, Math.min(maxBatchSize, batchSize)), stats.entityTooLargeLimit);
+    }
+
+    /**
+     * 上报成功
+     *
+     * @param networkType 网络类型
+     * @param eventCount 上报的条数
+     * @param contentLength 请求体字节数
+     * @param requestTime 请求耗时，单位毫秒
+     */
+    void onSuccess(String networkType, int eventCount, long contentLength, long requestTime) {
+        if (eventCount <= 0) {
+            return;
+        }
+        NetworkStats stats = getNetworkStats(networkType);
+        relaxEntityTooLargeLimit(stats, eventCount);
+        double bytesPerEvent = (double) contentLength / eventCount;
+        if (stats.bytesPerEvent > 0) {
+            stats.bytesPerEvent += SMOOTHING_FACTOR * (bytesPerEvent - stats.bytesPerEvent);
+        } else {
+            stats.bytesPerEvent = bytesPerEvent;
+        }
+        if (stats.requestTime > 0) {
+            stats.requestTime += SMOOTHING_FACTOR * (requestTime - stats.requestTime);
+        } else {
+            stats.requestTime = requestTime;
+        }
+        if (stats.requestTime < FAST_REQUEST_TIME) {
+            stats.targetBytes = Math.min(stats.targetBytes * 3 / 2, stats.maxTargetBytes);
+        } else if (stats.requestTime > SLOW_REQUEST_TIME) {
+            stats.targetBytes = Math.max(stats.targetBytes / 2, MIN_TARGET_BYTES);
+        }
+    }
+
+    /**
+     * 上报失败，减小请求体
+     *
+     * @param networkType 网络类型
+     */
+    void onFailure(String networkType) {
+        NetworkStats stats = getNetworkStats(networkType);
+        stats.targetBytes = Math.max(stats.targetBytes / 2, MIN_TARGET_BYTES);
+    }
+
+    /**
+     * 服务端返回 413，请求体过大。之后该网络类型下每次上报的条数不超过本次条数的一半，
+     * 按上限条数连续成功 ENTITY_TOO_LARGE_RELAX_COUNT 次后上限加倍
+     *
+     * @param networkType 网络类型
+     * @param eventCount 本次上报的条数
+     * @return true: 可以减小条数重新上报，保留数据；false: 只有一条数据或条数未知，无法再减小
+     */
+    boolean onEntityTooLarge(String networkType, int eventCount) {
+        onFailure(networkType);
+        if (eventCount <= 1) {
+            return false;
+        }
+        NetworkStats stats = getNetworkStats(networkType);
+        stats.entityTooLargeLimit = Math.min(stats.entityTooLargeLimit, eventCount / 2);
+        stats.limitedSuccessCount = 0;
+        return true;
+    }
+
+    /**
+     * 按 413 上限条数上报成功时计数，连续成功足够次数后放宽上限，避免一次偶发的 413 一直限制条数
+     */
+    private void relaxEntityTooLargeLimit(NetworkStats stats, int eventCount) {
+        if (stats.entityTooLargeLimit == Integer.MAX_VALUE || eventCount < stats.entityTooLargeLimit) {
+            return;
+        }
+        if (++stats.limitedSuccessCount >= ENTITY_TOO_LARGE_RELAX_COUNT) {
+            stats.limitedSuccessCount = 0;
+            stats.entityTooLargeLimit = stats.entityTooLargeLimit > Integer.MAX_VALUE / 2
+                    ? Integer.MAX_VALUE : stats.entityTooLargeLimit * 2;
+        }
+    }
+
+    private NetworkStats getNetworkStats(String networkType) {
+        NetworkStats stats = mNetworkStats.get(networkType);
+        if (stats == null) {
+            stats = new NetworkStats(initialTargetBytes(networkType));
+            mNetworkStats.put(networkType, stats);
+        }
+        return stats;
+    }
+
+    private static long initialTargetBytes(String networkType) {
+        if ("WIFI".equals(networkType)) {
+            return 128 * 1024;
+        } else if ("5G".equals(networkType) || "4G".equals(networkType)) {
+            return 64 * 1024;
+        } else if ("2G".equals(networkType)) {
+            return 8 * 1024;
+        }
+        return 32 * 1024;
+    }
+
+    private static class NetworkStats {
+        /* 请求体字节数的上限 */
+        final long maxTargetBytes;
+        /* 期望的请求体字节数 */
+        long targetBytes;
+        /* 每条数据平均字节数 */
+        double bytesPerEvent;
+        /* 平均请求耗时 */
+        double requestTime;
+        /* 服务端返回 413 后每次上报的条数上限，不受最小条数限制 */
+        int entityTooLargeLimit = Integer.MAX_VALUE;
+        /* 按上限条数连续成功的次数 */
+        int limitedSuccessCount;
+
+        NetworkStats(long initialTargetBytes) {
+            this.targetBytes = initialTargetBytes;
+            this.maxTargetBytes = initialTargetBytes * 4;
+        }
+    }
+}
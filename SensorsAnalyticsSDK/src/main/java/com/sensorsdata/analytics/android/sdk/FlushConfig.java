@@ -0,0 +1,73 @@
+/*
+ * Created by dengshiwei on 2020/06/13.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 上报相关配置的快照，配置变化时由 SensorsDataAPI 重新生成并发布给 AnalyticsMessages，
+ * 读取时不需要获取 SensorsDataAPI 实例，也不需要加锁
+ */
+final class FlushConfig {
+    /* SensorsDataAPI 发布配置之前使用的默认值，数据接收地址为空，不会上报 */
+    static final FlushConfig DEFAULT = new FlushConfig();
+    final SensorsDataAPI.DebugMode debugMode;
+    final String serverUrl;
+    final boolean networkRequestEnable;
+    final int flushNetworkPolicy;
+    final int flushInterval;
+    final int flushBulkSize;
+    final int batchInsertSize;
+    final int batchInsertInterval;
+    final int minFlushBatchSize;
+    final int maxFlushBatchSize;
+    final boolean binaryFlushEnabled;
+    final boolean multiProcessFlushData;
+
+    private FlushConfig() {
+        debugMode = SensorsDataAPI.DebugMode.DEBUG_OFF;
+        serverUrl = null;
+        networkRequestEnable = true;
+        flushNetworkPolicy = SensorsNetworkType.TYPE_3G | SensorsNetworkType.TYPE_4G | SensorsNetworkType.TYPE_WIFI | SensorsNetworkType.TYPE_5G;
+        flushInterval = 15000;
+        flushBulkSize = 100;
+        batchInsertSize = 0;
+        batchInsertInterval = 1000;
+        minFlushBatchSize = FlushBatchSizer.DEFAULT_BATCH_SIZE;
+        maxFlushBatchSize = FlushBatchSizer.DEFAULT_BATCH_SIZE;
+        binaryFlushEnabled = false;
+        multiProcessFlushData = false;
+    }
+
+    FlushConfig(SensorsDataAPI sensorsDataAPI) {
+        debugMode = sensorsDataAPI.getDebugMode();
+        serverUrl = sensorsDataAPI.getServerUrl();
+        networkRequestEnable = sensorsDataAPI.isNetworkRequestEnable();
+        flushNetworkPolicy = sensorsDataAPI.getFlushNetworkPolicy();
+        flushInterval = sensorsDataAPI.getFlushInterval();
+        flushBulkSize = sensorsDataAPI.getFlushBulkSize();
+        batchInsertSize = sensorsDataAPI.getBatchInsertSize();
+        batchInsertInterval = sensorsDataAPI.getBatchInsertInterval();
+        minFlushBatchSize = sensorsDataAPI.getMinFlushBatchSize();
+        maxFlushBatchSize = sensorsDataAPI.getMaxFlushBatchSize();
+        binaryFlushEnabled = sensorsDataAPI.isBinaryFlushEnabled();
+        multiProcessFlushData = sensorsDataAPI.isMultiProcessFlushData();
+    }
+
+    boolean isDebugMode() {
+        return debugMode.isDebugMode();
+    }
+}
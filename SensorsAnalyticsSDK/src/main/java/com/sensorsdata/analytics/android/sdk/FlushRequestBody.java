@@ -0,0 +1,294 @@
+/*
+ * Created by dengshiwei on 2020/06/08.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import com.sensorsdata.analytics.android.sdk.data.DbParams;
+import com.sensorsdata.analytics.android.sdk.exceptions.InvalidDataException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import static com.sensorsdata.analytics.android.sdk.util.Base64Coder.CHARSET_UTF8;
+
+/**
+ * 上报数据的请求体，表单格式为 crc=xxx&amp;gzip=xxx&amp;data_list=xxx。
+ * Base64 编码和 URL 编码在写入输出流时逐字符进行，不再生成完整的 Base64 字符串和请求字符串。
+ * 二进制格式直接发送 GZIP 压缩后的数据，校验值通过请求头 crc 传递。
+ */
+class FlushRequestBody {
+    /* 二进制格式的校验值请求头，值为压缩数据的 CRC32 */
+    static final String HEADER_CRC = "crc";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int BUFFER_SIZE = 8192;
+    private final CharSequence mData;
+    private final String mPrefix;
+    private final byte[] mBinaryData;
+    private final long mBinaryCrc;
+    private final long mContentLength;
+
+    /**
+     * @param rawMessage 上报的数据
+     * @param gzip 数据类型，{@link DbParams#GZIP_DATA_EVENT} 时进行 GZIP 压缩和 Base64 编码
+     * @throws InvalidDataException 数据压缩失败
+     */
+    FlushRequestBody(String rawMessage, String gzip) throws InvalidDataException {
+        this(rawMessage, gzip, false);
+    }
+
+    /**
+     * @param rawMessage 上报的数据
+     * @param gzip 数据类型，{@link DbParams#GZIP_DATA_EVENT} 时进行 GZIP 压缩
+     * @param binary 是否使用二进制格式，只对 {@link DbParams#GZIP_DATA_EVENT} 类型的数据生效
+     * @throws InvalidDataException 数据压缩失败
+     */
+    FlushRequestBody(String rawMessage, String gzip, boolean binary) throws InvalidDataException {
+        if (binary && DbParams.GZIP_DATA_EVENT.equals(gzip)) {
+            mBinaryData = gzip(rawMessage);
+            CRC32 crc32 = new CRC32();
+            crc32.update(mBinaryData, 0, mBinaryData.length);
+            mBinaryCrc = crc32.getValue();
+            mData = null;
+            mPrefix = null;
+            mContentLength = mBinaryData.length;
+            return;
+        }
+        mBinaryData = null;
+        mBinaryCrc = 0;
+        if (DbParams.GZIP_DATA_EVENT.equals(gzip)) {
+            mData = new Base64Sequence(gzip(rawMessage));
+        } else {
+            mData = rawMessage;
+        }
+        int crc = 0;
+        long dataLength = 0;
+        for (int i = 0, length = mData.length(); i < length; i++) {
+            char c = mData.charAt(i);
+            crc = 31 * crc + c;
+            dataLength += encodedLength(mData, i, c);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(mData.charAt(i + 1))) {
+                crc = 31 * crc + mData.charAt(++i);
+            }
+        }
+        // 与 Uri.Builder 拼接的参数顺序保持一致
+        mPrefix = "crc=" + crc + "&gzip=" + gzip + "&data_list=";
+        mContentLength = mPrefix.length() + dataLength;
+    }
+
+    /**
+     * 请求体的字节数
+     *
+     * @return 字节数
+     */
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * 是否为二进制格式
+     *
+     * @return true：二进制格式，false：表单格式
+     */
+    boolean isBinary() {
+        return mBinaryData != null;
+    }
+
+    /**
+     * 设置请求头以及请求体长度，需要在 getOutputStream 之前调用
+     *
+     * @param connection HttpURLConnection
+     */
+    void applyTo(HttpURLConnection connection) {
+        if (isBinary()) {
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty(HEADER_CRC, String.valueOf(mBinaryCrc));
+        } else {
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        }
+        connection.setFixedLengthStreamingMode((int) mContentLength);
+    }
+
+    /**
+     * 写入请求体，重定向时可以重复写入
+     *
+     * @param out 输出流
+     * @throws IOException 写入异常
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (isBinary()) {
+            out.write(mBinaryData);
+            out.flush();
+            return;
+        }
+        out.write(mPrefix.getBytes(CHARSET_UTF8));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int position = 0;
+        for (int i = 0, length = mData.length(); i < length; i++) {
+            if (position > BUFFER_SIZE - 12) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            char c = mData.charAt(i);
+            if (isUnreserved(c)) {
+                buffer[position++] = (byte) c;
+                continue;
+            }
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(mData.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, mData.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                // 与 String.getBytes 的处理保持一致，无效的代理字符替换为 '?'
+                codePoint = '?';
+            }
+            position = percentEncode(codePoint, buffer, position);
+        }
+        if (position > 0) {
+            out.write(buffer, 0, position);
+        }
+        out.flush();
+    }
+
+    private static byte[] gzip(String rawMessage) throws InvalidDataException {
+        Writer writer = null;
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(32, rawMessage.length() / 4));
+            writer = new OutputStreamWriter(new GZIPOutputStream(os), CHARSET_UTF8);
+            writer.write(rawMessage);
+            writer.close();
+            writer = null;
+            return os.toByteArray();
+        } catch (IOException exception) {
+            // 格式错误，直接将数据删除
+            throw new InvalidDataException(exception);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 与 Uri.encode 保持一致，字母、数字以及 "_-!.~'()*" 不进行编码
+     */
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "_-!.~'()*".indexOf(c) != -1;
+    }
+
+    private static int encodedLength(CharSequence data, int index, char c) {
+        if (isUnreserved(c)) {
+            return 1;
+        }
+        if (Character.isHighSurrogate(c) && index + 1 < data.length() && Character.isLowSurrogate(data.charAt(index + 1))) {
+            return 12;
+        } else if (Character.isSurrogate(c) || c < 0x80) {
+            return 3;
+        } else if (c < 0x800) {
+            return 6;
+        }
+        return 9;
+    }
+
+    private static int percentEncode(int codePoint, byte[] buffer, int position) {
+        if (codePoint < 0x80) {
+            position = percentEncodeByte(codePoint, buffer, position);
+        } else if (codePoint < 0x800) {
+            position = percentEncodeByte(0xC0 | (codePoint >> 6), buffer, position);
+            position = percentEncodeByte(0x80 | (codePoint & 0x3F), buffer, position);
+        } else if (codePoint < 0x10000) {
+            position = percentEncodeByte(0xE0 | (codePoint >> 12), buffer, position);
+            position = percentEncodeByte(0x80 | ((codePoint >> 6) & 0x3F), buffer, position);
+            position = percentEncodeByte(0x80 | (codePoint & 0x3F), buffer, position);
+        } else {
+            position = percentEncodeByte(0xF0 | (codePoint >> 18), buffer, position);
+            position = percentEncodeByte(0x80 | ((codePoint >> 12) & 0x3F), buffer, position);
+            position = percentEncodeByte(0x80 | ((codePoint >> 6) & 0x3F), buffer, position);
+            position = percentEncodeByte(0x80 | (codePoint & 0x3F), buffer, position);
+        }
+        return position;
+    }
+
+    private static int percentEncodeByte(int b, byte[] buffer, int position) {
+        buffer[position++] = '%';
+        buffer[position++] = (byte) HEX_DIGITS[(b >> 4) & 0xF];
+        buffer[position++] = (byte) HEX_DIGITS[b & 0xF];
+        return position;
+    }
+
+    /**
+     * 字节数组的 Base64 视图，按需计算每个字符，与 Base64Coder.encode 的结果一致
+     */
+    private static class Base64Sequence implements CharSequence {
+        private static final char[] MAP = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        private final byte[] mBytes;
+        private final int mLength;
+
+        Base64Sequence(byte[] bytes) {
+            this.mBytes = bytes;
+            this.mLength = ((bytes.length + 2) / 3) * 4;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            int group = index / 4 * 3;
+            int remain = mBytes.length - group;
+            int b0 = mBytes[group] & 0xff;
+            int b1 = remain > 1 ? mBytes[group + 1] & 0xff : 0;
+            int b2 = remain > 2 ? mBytes[group + 2] & 0xff : 0;
+            switch (index % 4) {
+                case 0:
+                    return MAP[b0 >>> 2];
+                case 1:
+                    return MAP[((b0 & 3) << 4) | (b1 >>> 4)];
+                case 2:
+                    return remain > 1 ? MAP[((b1 & 0xf) << 2) | (b2 >>> 6)] : '=';
+                default:
+                    return remain > 2 ? MAP[b2 & 0x3F] : '=';
+            }
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(mLength);
+            for (int i = 0; i < mLength; i++) {
+                builder.append(charAt(i));
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -829,6 +829,20 @@ public interface ISensorsDataAPI extends IFragmentAPI {
      */
     void registerDynamicSuperProperties(SensorsDataDynamicSuperProperties dynamicSuperProperties);
 
+    /**
+     * 使缓存的动态公共属性失效，下一条事件重新获取动态公共属性。
+     * 只在通过 SAConfigOptions.setDynamicSuperPropertiesCache 开启缓存后生效
+     */
+    void invalidateDynamicSuperProperties();
+
+    /**
+     * 获取动态公共属性回调的统计信息，包括回调次数、缓存命中次数、超时次数以及回调耗时。
+     * 只在通过 SAConfigOptions.setDynamicSuperPropertiesCache 开启缓存后生效
+     *
+     * @return 统计信息，未开启缓存时返回 null
+     */
+    DynamicSuperPropertiesStats getDynamicSuperPropertiesStats();
+
     /**
      * 设置 track 事件回调
      *
@@ -367,6 +367,18 @@ public final class SAConfigOptions extends AbstractSAConfigOptions {
         return this;
     }
 
+    /**
+     * 开启加密后，是否在上报时对整批数据压缩、加密。开启后事件入库时只进行本地加密，
+     * 每次上报只进行一次 GZIP 压缩和 AES 加密，需要服务端支持 payloads 解密后为 JSONArray 格式的数据
+     *
+     * @param enableBatchEncrypt 是否整批加密
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions enableBatchEncrypt(boolean enableBatchEncrypt) {
+        this.mEnableBatchEncrypt = enableBatchEncrypt;
+        return this;
+    }
+
     /**
      * 密钥回调监听
      *
@@ -378,6 +390,118 @@ public final class SAConfigOptions extends AbstractSAConfigOptions {
         return this;
     }
 
+    /**
+     * 设置事件批量入库策略，事件先在内存中缓存，达到条数上限或等待时间后通过一个事务写入数据库。
+     * $AppEnd、AppCrashed、track_signup 事件以及 Debug 模式下会立即入库。默认逐条入库
+     *
+     * @param batchSize 批量入库的最大条数，合法区间在 [1, 50] 之间，1 表示逐条入库
+     * @param batchInterval 最长等待时间，单位毫秒，合法区间在 [100, 5000] 之间
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setBatchInsertPolicy(int batchSize, int batchInterval) {
+        this.mBatchInsertSize = Math.min(Math.max(1, batchSize), 50);
+        this.mBatchInsertInterval = Math.min(Math.max(100, batchInterval), 5000);
+        return this;
+    }
+
+    /**
+     * 开启动态调整每次上报的条数，SDK 会根据请求体大小以及当前网络类型下的请求耗时、成功率在区间内调整。
+     * 默认每次上报 50 条
+     *
+     * @param minBatchSize 每次上报的最小条数，最小为 1
+     * @param maxBatchSize 每次上报的最大条数，最大为 500
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setFlushBatchSizeRange(int minBatchSize, int maxBatchSize) {
+        this.mMinFlushBatchSize = Math.min(Math.max(1, minBatchSize), 500);
+        this.mMaxFlushBatchSize = Math.min(Math.max(this.mMinFlushBatchSize, maxBatchSize), 500);
+        return this;
+    }
+
+    /**
+     * 是否以 GZIP 二进制请求体上报数据，不再进行 Base64 和 URL 编码，可以减少上报流量。
+     * 需要服务端支持，服务端不支持时自动切换为表单格式上报
+     *
+     * @param enableBinaryFlush 是否开启二进制上报
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions enableBinaryFlush(boolean enableBinaryFlush) {
+        this.mEnableBinaryFlush = enableBinaryFlush;
+        return this;
+    }
+
+    /**
+     * 设置采集任务队列的容量以及队列已满时的处理策略，默认容量 10000，队列已满时丢弃最早的任务。
+     * 使用 {@link TrackTaskOverflowPolicy#BLOCK} 时主线程中添加任务也不会阻塞，按照丢弃最早的任务处理
+     *
+     * @param capacity 队列容量，最小为 100
+     * @param overflowPolicy 处理策略，{@link TrackTaskOverflowPolicy}
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setTrackTaskQueuePolicy(int capacity, int overflowPolicy) {
+        this.mTrackTaskQueueCapacity = Math.max(100, capacity);
+        if (overflowPolicy == TrackTaskOverflowPolicy.BLOCK || overflowPolicy == TrackTaskOverflowPolicy.DROP_NEWEST) {
+            this.mTrackTaskOverflowPolicy = overflowPolicy;
+        } else {
+            this.mTrackTaskOverflowPolicy = TrackTaskOverflowPolicy.DROP_OLDEST;
+        }
+        return this;
+    }
+
+    /**
+     * 设置未指定 $lib_detail 的事件采集 $lib_detail 的采样率，默认每 10 条事件采集 1 次，设置为 1 时每条事件都采集。
+     * $lib_detail 为 track、trackTimerEnd、itemSet、itemDelete 在 SDK 外部的调用位置，需要在调用线程中获取调用栈，
+     * 采样可以减少调用线程（通常是主线程）的开销。通过事件属性传入 $lib_detail 的事件不获取调用栈，也不受采样影响。
+     * trackInstallation、profile 相关接口以及 SDK 内部触发的事件不再采集 $lib_detail，
+     * 之前这些事件的 $lib_detail 固定为 SDK 内部的调用位置
+     *
+     * @param sampleRate 0 表示不采集，N 表示每 N 条事件采集 1 次
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setLibDetailSampleRate(int sampleRate) {
+        this.mLibDetailSampleRate = Math.max(0, sampleRate);
+        return this;
+    }
+
+    /**
+     * 设置动态公共属性的缓存有效期以及回调超时时间，默认每条事件都同步执行回调。
+     * 设置超时时间后回调在单独的线程中执行，超时后使用上一次的结果，
+     * 可以通过 {@link SensorsDataAPI#invalidateDynamicSuperProperties()} 使缓存立即失效
+     *
+     * @param ttl 缓存有效期，单位毫秒，0 表示不缓存
+     * @param timeout 回调超时时间，单位毫秒，0 表示不限制
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setDynamicSuperPropertiesCache(long ttl, long timeout) {
+        this.mDynamicSuperPropertiesTTL = Math.max(0, ttl);
+        this.mDynamicSuperPropertiesTimeout = Math.max(0, timeout);
+        return this;
+    }
+
+    /**
+     * 设置前台定时保存 $AppEnd 信息的时间间隔，默认 15 秒，最小 2 秒。
+     * 页面 onPause、onTrimMemory 以及崩溃时都会保存，进程在前台被强制结束时，补发的 $AppEnd 时间误差不超过该间隔
+     *
+     * @param interval 时间间隔，单位毫秒
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions setAppEndCheckpointInterval(int interval) {
+        this.mAppEndCheckpointInterval = Math.max(2 * 1000, interval);
+        return this;
+    }
+
+    /**
+     * 是否使用内存映射的追加日志文件代替数据库存储事件，只在 enableMultiProcess(false) 时生效。
+     * 切换存储方式时，已缓存的事件会迁移到新的存储中
+     *
+     * @param enableEventJournal 是否使用日志文件存储事件
+     * @return SAConfigOptions
+     */
+    public SAConfigOptions enableEventJournal(boolean enableEventJournal) {
+        this.mEnableEventJournal = enableEventJournal;
+        return this;
+    }
+
     /**
      * 是否多进程上报数据
      *
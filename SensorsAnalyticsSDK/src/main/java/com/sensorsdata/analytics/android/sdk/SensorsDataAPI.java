@@ -19,7 +19,10 @@ package com.sensorsdata.analytics.android.sdk;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -67,8 +70,6 @@ import org.json.JSONObject;
 import java.lang.reflect.Method;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -79,7 +80,9 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -102,6 +105,10 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     // Maps each token to a singleton SensorsDataAPI instance
     private static final Map<Context, SensorsDataAPI> sInstanceMap = new HashMap<>();
     private static final String TAG = "SA.SensorsDataAPI";
+    /* 获取运营商信息失败后再次获取的间隔，单位毫秒 */
+    private static final long CARRIER_RETRY_INTERVAL = 60 * 1000;
+    /* SDK 的包名前缀，获取 $lib_detail 时跳过 SDK 内部的调用栈 */
+    private static final String SDK_PACKAGE_PREFIX = SensorsDataAPI.class.getName().substring(0, SensorsDataAPI.class.getName().lastIndexOf('.') + 1);
     static boolean mIsMainProcess = false;
     static boolean SHOW_DEBUG_INFO_VIEW = true;
     private static SensorsDataGPSLocation mGPSLocation;
@@ -111,6 +118,8 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     private final AnalyticsMessages mMessages;
     private final PersistentDistinctId mDistinctId;
     private final PersistentSuperProperties mSuperProperties;
+    /* 公共属性快照，公共属性变化时在 mSuperProperties 锁内整体替换 */
+    private volatile SuperPropertiesSnapshot mSuperPropertiesSnapshot;
     private final PersistentFirstStart mFirstStart;
     private final PersistentFirstDay mFirstDay;
     private final PersistentFirstTrackInstallation mFirstTrackInstallation;
@@ -151,7 +160,9 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     private TrackTaskManagerThread mTrackTaskManagerThread;
     private SensorsDataScreenOrientationDetector mOrientationDetector;
     private SensorsDataDynamicSuperProperties mDynamicSuperPropertiesCallBack;
-    private SimpleDateFormat mIsFirstDayDateFormat;
+    /* 动态公共属性缓存，未开启时为 null */
+    private final DynamicSuperPropertiesCache mDynamicSuperPropertiesCache;
+    private final FirstDayChecker mFirstDayChecker = new FirstDayChecker();
     SSLSocketFactory mSSLSocketFactory;
     private SensorsDataTrackEventCallBack mTrackEventCallBack;
     private List<SAEventListener> mEventListenerList;
@@ -159,6 +170,15 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     SensorsDataEncrypt mSensorsDataEncrypt;
     private SensorsDataDeepLinkCallback mDeepLinkCallback;
     SensorsDataRemoteManager mRemoteManager;
+    /* 生成事件的 _track_id */
+    private final TrackIdGenerator mTrackIdGenerator;
+    /* 根据采样率采集 $lib_detail 的事件计数，在各个调用线程中累加 */
+    private final AtomicInteger mLibDetailCounter = new AtomicInteger();
+    /* 运营商信息，获取成功后不再重新获取 */
+    private volatile String mCarrier;
+    /* 上一次获取运营商信息的时间，通过 mCarrierLock 加锁访问 */
+    private long mLastCarrierQueryTime;
+    private final Object mCarrierLock = new Object();
 
     //private
     SensorsDataAPI() {
@@ -174,6 +194,8 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         mTrackTimer = null;
         mMainProcessName = null;
         mSensorsDataEncrypt = null;
+        mTrackIdGenerator = null;
+        mDynamicSuperPropertiesCache = null;
     }
 
     SensorsDataAPI(Context context, String serverURL, DebugMode debugMode) {
@@ -190,6 +212,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         mFirstTrackInstallation = (PersistentFirstTrackInstallation) PersistentLoader.loadPersistent(PersistentLoader.PersistentName.FIRST_INSTALL);
         mFirstTrackInstallationWithCallback = (PersistentFirstTrackInstallationWithCallback) PersistentLoader.loadPersistent(PersistentLoader.PersistentName.FIRST_INSTALL_CALLBACK);
         mFirstDay = (PersistentFirstDay) PersistentLoader.loadPersistent(PersistentLoader.PersistentName.FIRST_DAY);
+        mTrackIdGenerator = new TrackIdGenerator();
 
         mTrackTaskManager = TrackTaskManager.getInstance();
         mTrackTaskManagerThread = new TrackTaskManagerThread();
@@ -197,7 +220,16 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         SensorsDataExceptionHandler.init();
 
         initSAConfig(serverURL, packageName);
+        mTrackTaskManager.setQueuePolicy(mSAConfigOptions.mTrackTaskQueueCapacity, mSAConfigOptions.mTrackTaskOverflowPolicy);
+        if (mSAConfigOptions.mDynamicSuperPropertiesTTL > 0 || mSAConfigOptions.mDynamicSuperPropertiesTimeout > 0) {
+            mDynamicSuperPropertiesCache = new DynamicSuperPropertiesCache(mSAConfigOptions.mDynamicSuperPropertiesTTL,
+                    mSAConfigOptions.mDynamicSuperPropertiesTimeout);
+        } else {
+            mDynamicSuperPropertiesCache = null;
+        }
         mMessages = AnalyticsMessages.getInstance(mContext);
+        publishFlushConfig();
+        registerTimeZoneReceiver();
         mAndroidId = SensorsDataUtils.getAndroidID(mContext);
         mRemoteManager = new SensorsDataRemoteManager(mContext, mSAConfigOptions, mSensorsDataEncrypt, mDisableDefaultRemoteConfig, this);
         //先从缓存中读取 SDKConfig
@@ -295,6 +327,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         if (!sensorsDataAPI.mSDKConfigInit) {
             sensorsDataAPI.applySAConfigOptions();
         }
+        sensorsDataAPI.publishFlushConfig();
         return sensorsDataAPI;
     }
 
@@ -313,6 +346,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         if (!sensorsDataAPI.mSDKConfigInit) {
             sensorsDataAPI.applySAConfigOptions();
         }
+        sensorsDataAPI.publishFlushConfig();
     }
 
     private static SensorsDataAPI getInstance(Context context, String serverURL, DebugMode debugMode) {
@@ -378,7 +412,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         deviceInfo.put("$screen_width", size[0]);
         deviceInfo.put("$screen_height", size[1]);
 
-        String carrier = SensorsDataUtils.getCarrier(mContext);
+        String carrier = getCarrier();
         if (!TextUtils.isEmpty(carrier)) {
             deviceInfo.put("$carrier", carrier);
         }
@@ -419,7 +453,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             String networkType = NetworkUtils.networkType(mContext);
             properties.put("$wifi", "WIFI".equals(networkType));
             properties.put("$network_type", networkType);
-            properties.put("$carrier", mDeviceInfo.get("$carrier"));
+            properties.put("$carrier", getCarrier());
             properties.put("$is_first_day", isFirstDay(System.currentTimeMillis()));
             properties.put("$app_id", mDeviceInfo.get("$app_id"));
             properties.put("$timezone_offset", mDeviceInfo.get("$timezone_offset"));
@@ -451,6 +485,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     @Override
     public void setFlushNetworkPolicy(int networkType) {
         mSAConfigOptions.setNetworkTypePolicy(networkType);
+        publishFlushConfig();
     }
 
     int getFlushNetworkPolicy() {
@@ -465,6 +500,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     @Override
     public void setFlushInterval(int flushInterval) {
         mSAConfigOptions.setFlushInterval(flushInterval);
+        publishFlushConfig();
     }
 
     @Override
@@ -478,6 +514,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             SALog.i(TAG, "The value of flushBulkSize is invalid");
         }
         mSAConfigOptions.setFlushBulkSize(flushBulkSize);
+        publishFlushConfig();
     }
 
     @Override
@@ -1659,12 +1696,13 @@ public class SensorsDataAPI implements ISensorsDataAPI {
 
     @Override
     public void track(final String eventName, final JSONObject properties) {
+        final String callerLibDetail = getCallerLibDetail(properties);
         mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
                 try {
                     JSONObject _properties = ChannelUtils.checkOrSetChannelCallbackEvent(getConfigOptions().isAutoAddChannelCallbackEvent, eventName, properties, mContext);
-                    trackEvent(EventType.TRACK, eventName, _properties, null);
+                    trackEvent(EventType.TRACK, eventName, _properties, null, callerLibDetail);
                 } catch (Exception e) {
                     SALog.printStackTrace(e);
                 }
@@ -1808,6 +1846,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     @Override
     public void trackTimerEnd(final String eventName, final JSONObject properties) {
         final long endTime = SystemClock.elapsedRealtime();
+        final String callerLibDetail = getCallerLibDetail(properties);
         mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
@@ -1821,7 +1860,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 }
                 try {
                     JSONObject _properties = ChannelUtils.checkOrSetChannelCallbackEvent(getConfigOptions().isAutoAddChannelCallbackEvent, eventName, properties, mContext);
-                    trackEvent(EventType.TRACK, eventName, _properties, null);
+                    trackEvent(EventType.TRACK, eventName, _properties, null, callerLibDetail);
                 } catch (Exception e) {
                     SALog.printStackTrace(e);
                 }
@@ -2105,6 +2144,22 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     @Override
     public void registerDynamicSuperProperties(SensorsDataDynamicSuperProperties dynamicSuperProperties) {
         mDynamicSuperPropertiesCallBack = dynamicSuperProperties;
+        invalidateDynamicSuperProperties();
+    }
+
+    @Override
+    public void invalidateDynamicSuperProperties() {
+        if (mDynamicSuperPropertiesCache != null) {
+            mDynamicSuperPropertiesCache.invalidate();
+        }
+    }
+
+    @Override
+    public DynamicSuperPropertiesStats getDynamicSuperPropertiesStats() {
+        if (mDynamicSuperPropertiesCache != null) {
+            return mDynamicSuperPropertiesCache.getStats();
+        }
+        return null;
     }
 
     @Override
@@ -2141,14 +2196,36 @@ public class SensorsDataAPI implements ISensorsDataAPI {
 
     @Override
     public JSONObject getSuperProperties() {
-        synchronized (mSuperProperties) {
-            try {
-                return new JSONObject(mSuperProperties.get().toString());
-            } catch (JSONException e) {
-                SALog.printStackTrace(e);
-                return new JSONObject();
+        return getSuperPropertiesSnapshot().toJSONObject();
+    }
+
+    /**
+     * 获取公共属性快照，首次调用时从本地缓存生成
+     *
+     * @return 公共属性快照
+     */
+    private SuperPropertiesSnapshot getSuperPropertiesSnapshot() {
+        SuperPropertiesSnapshot snapshot = mSuperPropertiesSnapshot;
+        if (snapshot == null) {
+            synchronized (mSuperProperties) {
+                snapshot = mSuperPropertiesSnapshot;
+                if (snapshot == null) {
+                    snapshot = SuperPropertiesSnapshot.create(mSuperProperties.get());
+                    mSuperPropertiesSnapshot = snapshot;
+                }
             }
         }
+        return snapshot;
+    }
+
+    /**
+     * 保存公共属性并替换快照，需要在 mSuperProperties 锁内调用
+     *
+     * @param superProperties 公共属性
+     */
+    private void commitSuperProperties(JSONObject superProperties) {
+        mSuperProperties.commit(superProperties);
+        mSuperPropertiesSnapshot = SuperPropertiesSnapshot.create(superProperties);
     }
 
     @Override
@@ -2163,7 +2240,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                     assertPropertyTypes(superProperties);
                     synchronized (mSuperProperties) {
                         JSONObject properties = mSuperProperties.get();
-                        mSuperProperties.commit(SensorsDataUtils.mergeSuperJSONObject(superProperties, properties));
+                        commitSuperProperties(SensorsDataUtils.mergeSuperJSONObject(superProperties, properties));
                     }
                 } catch (Exception e) {
                     SALog.printStackTrace(e);
@@ -2181,7 +2258,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                     synchronized (mSuperProperties) {
                         JSONObject superProperties = mSuperProperties.get();
                         superProperties.remove(superPropertyName);
-                        mSuperProperties.commit(superProperties);
+                        commitSuperProperties(superProperties);
                     }
                 } catch (Exception e) {
                     SALog.printStackTrace(e);
@@ -2196,7 +2273,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             @Override
             public void run() {
                 synchronized (mSuperProperties) {
-                    mSuperProperties.commit(new JSONObject());
+                    commitSuperProperties(new JSONObject());
                 }
             }
         });
@@ -2365,6 +2442,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
     @Override
     public void enableNetworkRequest(boolean isRequest) {
         this.mEnableNetworkRequest = isRequest;
+        publishFlushConfig();
     }
 
     DebugMode getDebugMode() {
@@ -2382,6 +2460,16 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             SALog.setDebug(true);
             setServerUrl(mOriginServerUrl);
         }
+        publishFlushConfig();
+    }
+
+    /**
+     * 上报相关配置变化后，生成新的配置快照并发布给 AnalyticsMessages
+     */
+    void publishFlushConfig() {
+        if (mMessages != null) {
+            mMessages.setFlushConfig(new FlushConfig(this));
+        }
     }
 
     String getServerUrl() {
@@ -2435,6 +2523,8 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             }
         } catch (Exception e) {
             com.sensorsdata.analytics.android.sdk.SALog.printStackTrace(e);
+        } finally {
+            publishFlushConfig();
         }
     }
 
@@ -2530,18 +2620,16 @@ public class SensorsDataAPI implements ISensorsDataAPI {
             String distinctIdKey = "distinct_id";
             if (eventType == EventType.TRACK_SIGNUP) {
                 eventObject.put("original_id", getAnonymousId());
-            } else if (!TextUtils.isEmpty(getLoginId())) {
-                eventObject.put(distinctIdKey, getLoginId());
             } else {
-                eventObject.put(distinctIdKey, getAnonymousId());
+                String loginId = getLoginId();
+                eventObject.put(distinctIdKey, TextUtils.isEmpty(loginId) ? getAnonymousId() : loginId);
             }
             eventObject.put("anonymous_id", getAnonymousId());
             long eventTime = System.currentTimeMillis();
             eventObject.put("time", eventTime);
 
             try {
-                SecureRandom secureRandom = new SecureRandom();
-                eventObject.put("_track_id", secureRandom.nextInt());
+                eventObject.put("_track_id", mTrackIdGenerator.nextId());
             } catch (Exception e) {
                 //ignore
             }
@@ -2560,11 +2648,9 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 }
 
                 //update lib $app_version from super properties
-                JSONObject superProperties = mSuperProperties.get();
-                if (superProperties != null) {
-                    if (superProperties.has("$app_version")) {
-                        libObject.put("$app_version", superProperties.get("$app_version"));
-                    }
+                Object superAppVersion = getSuperPropertiesSnapshot().opt("$app_version");
+                if (superAppVersion != null) {
+                    libObject.put("$app_version", superAppVersion);
                 }
             }
 
@@ -2660,8 +2746,9 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                     }
                 }
             } else {
-                if (!TextUtils.isEmpty(getLoginId())) {
-                    eventObject.put("login_id", getLoginId());
+                String loginId = getLoginId();
+                if (!TextUtils.isEmpty(loginId)) {
+                    eventObject.put("login_id", loginId);
                 }
                 try {
                     if (mEventListenerList != null && eventType.isTrack()) {
@@ -2683,25 +2770,42 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         }
     }
 
+    /**
+     * 执行动态公共属性回调并校验属性类型
+     */
+    private final Callable<JSONObject> mDynamicSuperPropertiesLoader = new Callable<JSONObject>() {
+        @Override
+        public JSONObject call() throws Exception {
+            SensorsDataDynamicSuperProperties callBack = mDynamicSuperPropertiesCallBack;
+            if (callBack == null) {
+                return null;
+            }
+            JSONObject dynamicSuperProperties = callBack.getDynamicSuperProperties();
+            assertPropertyTypes(dynamicSuperProperties);
+            return dynamicSuperProperties;
+        }
+    };
+
     /**
      * 合并、去重静态公共属性与动态公共属性
      *
      * @param propertiesObject 保存合并后属性的 JSON
      */
     private void mergerDynamicAndSuperProperties(JSONObject propertiesObject) {
-        JSONObject superProperties = getSuperProperties();
         JSONObject dynamicSuperProperties = null;
         try {
             if (mDynamicSuperPropertiesCallBack != null) {
-                dynamicSuperProperties = mDynamicSuperPropertiesCallBack.getDynamicSuperProperties();
-                assertPropertyTypes(dynamicSuperProperties);
+                if (mDynamicSuperPropertiesCache != null) {
+                    dynamicSuperProperties = mDynamicSuperPropertiesCache.get(mDynamicSuperPropertiesLoader);
+                } else {
+                    dynamicSuperProperties = mDynamicSuperPropertiesLoader.call();
+                }
             }
         } catch (Exception e) {
             dynamicSuperProperties = null;
             SALog.printStackTrace(e);
         }
-        JSONObject removeDuplicateSuperProperties = SensorsDataUtils.mergeSuperJSONObject(dynamicSuperProperties, superProperties);
-        SensorsDataUtils.mergeJSONObject(removeDuplicateSuperProperties, propertiesObject);
+        getSuperPropertiesSnapshot().mergeInto(dynamicSuperProperties, propertiesObject);
     }
 
     /**
@@ -2766,6 +2870,20 @@ public class SensorsDataAPI implements ISensorsDataAPI {
 
     void trackEvent(final EventType eventType, String eventName, final JSONObject properties, final String
             originalDistinctId) {
+        trackEvent(eventType, eventName, properties, originalDistinctId, null);
+    }
+
+    /**
+     * 触发事件
+     *
+     * @param eventType 事件类型
+     * @param eventName 事件名称
+     * @param properties 事件属性
+     * @param originalDistinctId 原始 distinctId
+     * @param callerLibDetail 在调用线程中获取的调用位置，作为 $lib_detail，可以为 null
+     */
+    private void trackEvent(final EventType eventType, String eventName, final JSONObject properties, final String
+            originalDistinctId, String callerLibDetail) {
         try {
             EventTimer eventTimer = null;
             if (!TextUtils.isEmpty(eventName)) {
@@ -2797,7 +2915,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                     //之前可能会因为没有权限无法获取运营商信息，检测再次获取
                     try {
                         if (TextUtils.isEmpty(sendProperties.optString("$carrier"))) {
-                            String carrier = SensorsDataUtils.getCarrier(mContext);
+                            String carrier = getCarrier();
                             if (!TextUtils.isEmpty(carrier)) {
                                 sendProperties.put("$carrier", carrier);
                             }
@@ -2907,18 +3025,15 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 libProperties.put("$app_version", app_version);
 
                 //update lib $app_version from super properties
-                JSONObject superProperties = mSuperProperties.get();
-                if (superProperties != null) {
-                    if (superProperties.has("$app_version")) {
-                        libProperties.put("$app_version", superProperties.get("$app_version"));
-                    }
+                Object superAppVersion = getSuperPropertiesSnapshot().opt("$app_version");
+                if (superAppVersion != null) {
+                    libProperties.put("$app_version", superAppVersion);
                 }
 
                 final JSONObject dataObj = new JSONObject();
 
                 try {
-                    SecureRandom random = new SecureRandom();
-                    dataObj.put("_track_id", random.nextInt());
+                    dataObj.put("_track_id", mTrackIdGenerator.nextId());
                 } catch (Exception e) {
                     // ignore
                 }
@@ -2955,8 +3070,9 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 }
 
                 dataObj.put("distinct_id", getDistinctId());
-                if (!TextUtils.isEmpty(getLoginId())) {
-                    dataObj.put("login_id", getLoginId());
+                String loginId = getLoginId();
+                if (!TextUtils.isEmpty(loginId)) {
+                    dataObj.put("login_id", loginId);
                 }
                 dataObj.put("anonymous_id", getAnonymousId());
                 dataObj.put("lib", libProperties);
@@ -2992,13 +3108,7 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 }
 
                 if (TextUtils.isEmpty(libDetail)) {
-                    StackTraceElement[] trace = (new Exception()).getStackTrace();
-                    if (trace.length > 1) {
-                        StackTraceElement traceElement = trace[0];
-                        libDetail = String.format("%s##%s##%s##%s", traceElement
-                                        .getClassName(), traceElement.getMethodName(), traceElement.getFileName(),
-                                traceElement.getLineNumber());
-                    }
+                    libDetail = callerLibDetail;
                 }
 
                 libProperties.put("$lib_detail", libDetail);
@@ -3044,24 +3154,95 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         return mSAConfigOptions.mEnableMultiProcess;
     }
 
+    /**
+     * 监听时区变化，重新计算首日范围
+     */
+    private void registerTimeZoneReceiver() {
+        try {
+            mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    mFirstDayChecker.invalidate();
+                }
+            }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
     private boolean isFirstDay(long eventTime) {
-        String firstDay = mFirstDay.get();
-        if (firstDay == null) {
-            return true;
+        return mFirstDayChecker.isFirstDay(mFirstDay.get(), eventTime);
+    }
+
+    /**
+     * 获取运营商信息。获取失败时（例如没有权限或者没有 SIM 卡）间隔 CARRIER_RETRY_INTERVAL 后才再次获取，
+     * 避免每条事件都查询 TelephonyManager
+     *
+     * @return 运营商信息
+     */
+    private String getCarrier() {
+        String carrier = mCarrier;
+        if (!TextUtils.isEmpty(carrier)) {
+            return carrier;
         }
+        // 获取时间与结果在同一把锁中更新，多个线程同时调用时只查询一次
+        synchronized (mCarrierLock) {
+            carrier = mCarrier;
+            if (!TextUtils.isEmpty(carrier)) {
+                return carrier;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (mLastCarrierQueryTime != 0 && now - mLastCarrierQueryTime < CARRIER_RETRY_INTERVAL) {
+                return null;
+            }
+            mLastCarrierQueryTime = now;
+            carrier = SensorsDataUtils.getCarrier(mContext);
+            mCarrier = carrier;
+            return carrier;
+        }
+    }
+
+    /**
+     * 根据采样率判断当前事件是否采集 $lib_detail，可以在多个线程中调用
+     *
+     * @return true：采集，false：不采集
+     */
+    private boolean isLibDetailSampled() {
+        int sampleRate = mSAConfigOptions.mLibDetailSampleRate;
+        if (sampleRate <= 1) {
+            return sampleRate == 1;
+        }
+        return (mLibDetailCounter.getAndIncrement() & Integer.MAX_VALUE) % sampleRate == 0;
+    }
+
+    /**
+     * 在调用线程中获取 SDK 外部的调用位置，格式为 className##methodName##fileName##lineNumber。
+     * 必须在添加到采集任务队列之前调用，任务线程中只能获取到 SDK 内部的调用栈。
+     * 事件属性中已经指定 $lib_detail 时不会使用调用位置，不获取调用栈
+     *
+     * @param properties 事件属性，可以为 null
+     * @return 调用位置，已指定 $lib_detail、未被采样或者获取失败时返回 null
+     */
+    private String getCallerLibDetail(JSONObject properties) {
         try {
-            if (mIsFirstDayDateFormat == null) {
-                mIsFirstDayDateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+            if ((properties != null && properties.has("$lib_detail")) || !isLibDetailSampled()) {
+                return null;
+            }
+            StackTraceElement[] trace = (new Exception()).getStackTrace();
+            for (StackTraceElement traceElement : trace) {
+                if (!traceElement.getClassName().startsWith(SDK_PACKAGE_PREFIX)) {
+                    return String.format("%s##%s##%s##%s", traceElement
+                                    .getClassName(), traceElement.getMethodName(), traceElement.getFileName(),
+                            traceElement.getLineNumber());
+                }
             }
-            String current = mIsFirstDayDateFormat.format(eventTime);
-            return firstDay.equals(current);
         } catch (Exception e) {
-            com.sensorsdata.analytics.android.sdk.SALog.printStackTrace(e);
+            SALog.printStackTrace(e);
         }
-        return true;
+        return null;
     }
 
-    private void trackItemEvent(String itemType, String itemId, String eventType, JSONObject properties) {
+    private void trackItemEvent(String itemType, String itemId, String eventType, JSONObject properties, String callerLibDetail) {
         try {
             assertKey(itemType);
             assertValue(itemId);
@@ -3082,22 +3263,13 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 libProperties.put("$app_version", mDeviceInfo.get("$app_version"));
             }
 
-            JSONObject superProperties = mSuperProperties.get();
-            if (superProperties != null) {
-                if (superProperties.has("$app_version")) {
-                    libProperties.put("$app_version", superProperties.get("$app_version"));
-                }
+            Object superAppVersion = getSuperPropertiesSnapshot().opt("$app_version");
+            if (superAppVersion != null) {
+                libProperties.put("$app_version", superAppVersion);
             }
 
-            StackTraceElement[] trace = (new Exception()).getStackTrace();
-            if (trace.length > 1) {
-                StackTraceElement traceElement = trace[0];
-                String libDetail = String.format("%s##%s##%s##%s", traceElement
-                                .getClassName(), traceElement.getMethodName(), traceElement.getFileName(),
-                        traceElement.getLineNumber());
-                if (!TextUtils.isEmpty(libDetail)) {
-                    libProperties.put("$lib_detail", libDetail);
-                }
+            if (!TextUtils.isEmpty(callerLibDetail)) {
+                libProperties.put("$lib_detail", callerLibDetail);
             }
 
             JSONObject eventProperties = new JSONObject();
@@ -3112,7 +3284,9 @@ public class SensorsDataAPI implements ISensorsDataAPI {
                 eventProperties.put("project", eventProject);
             }
             mMessages.enqueueEventMessage(eventType, eventProperties);
-            SALog.i(TAG, "track event:\n" + JSONUtils.formatJson(eventProperties.toString()));
+            if (SALog.isLogEnabled()) {
+                SALog.i(TAG, "track event:\n" + JSONUtils.formatJson(eventProperties.toString()));
+            }
         } catch (Exception ex) {
             SALog.printStackTrace(ex);
         }
@@ -3140,10 +3314,12 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         }
 
         if (mSAConfigOptions.mEnableEncrypt) {
-            mSensorsDataEncrypt = new SensorsDataEncrypt(mContext, mSAConfigOptions.mPersistentSecretKey);
+            mSensorsDataEncrypt = new SensorsDataEncrypt(mContext, mSAConfigOptions.mPersistentSecretKey,
+                    mSAConfigOptions.mEnableBatchEncrypt);
         }
 
-        DbAdapter.getInstance(mContext, packageName, mSensorsDataEncrypt);
+        DbAdapter.getInstance(mContext, packageName, mSensorsDataEncrypt,
+                mSAConfigOptions.mEnableMultiProcess, mSAConfigOptions.mEnableEventJournal);
 
         if (mSAConfigOptions.mInvokeLog) {
             enableLog(mSAConfigOptions.mLogEnabled);
@@ -3303,20 +3479,22 @@ public class SensorsDataAPI implements ISensorsDataAPI {
 
     @Override
     public void itemSet(final String itemType, final String itemId, final JSONObject properties) {
+        final String callerLibDetail = getCallerLibDetail(null);
         mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
-                trackItemEvent(itemType, itemId, EventType.ITEM_SET.getEventType(), properties);
+                trackItemEvent(itemType, itemId, EventType.ITEM_SET.getEventType(), properties, callerLibDetail);
             }
         });
     }
 
     @Override
     public void itemDelete(final String itemType, final String itemId) {
+        final String callerLibDetail = getCallerLibDetail(null);
         mTrackTaskManager.addTrackEventTask(new Runnable() {
             @Override
             public void run() {
-                trackItemEvent(itemType, itemId, EventType.ITEM_DELETE.getEventType(), null);
+                trackItemEvent(itemType, itemId, EventType.ITEM_DELETE.getEventType(), null, callerLibDetail);
             }
         });
     }
@@ -3361,6 +3539,30 @@ public class SensorsDataAPI implements ISensorsDataAPI {
         return mSAConfigOptions.isSubProcessFlushData;
     }
 
+    int getBatchInsertSize() {
+        return mSAConfigOptions.mBatchInsertSize;
+    }
+
+    int getBatchInsertInterval() {
+        return mSAConfigOptions.mBatchInsertInterval;
+    }
+
+    int getMinFlushBatchSize() {
+        return mSAConfigOptions.mMinFlushBatchSize;
+    }
+
+    int getMaxFlushBatchSize() {
+        return mSAConfigOptions.mMaxFlushBatchSize;
+    }
+
+    boolean isBinaryFlushEnabled() {
+        return mSAConfigOptions.mEnableBinaryFlush;
+    }
+
+    int getAppEndCheckpointInterval() {
+        return mSAConfigOptions.mAppEndCheckpointInterval;
+    }
+
     /**
      * Debug 模式，用于检验数据导入是否正确。该模式下，事件会逐条实时发送到 Sensors Analytics，并根据返回值检查
      * 数据导入是否正确。
@@ -569,6 +569,16 @@ public class SensorsDataAPIEmptyImplementation extends SensorsDataAPI {
 
     }
 
+    @Override
+    public void invalidateDynamicSuperProperties() {
+
+    }
+
+    @Override
+    public DynamicSuperPropertiesStats getDynamicSuperPropertiesStats() {
+        return null;
+    }
+
     @Override
     public void setTrackEventCallBack(SensorsDataTrackEventCallBack trackEventCallBack) {
 
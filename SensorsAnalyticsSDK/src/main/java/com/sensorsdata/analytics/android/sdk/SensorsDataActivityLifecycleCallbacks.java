@@ -20,10 +20,12 @@ package com.sensorsdata.analytics.android.sdk;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Build;
@@ -58,7 +60,7 @@ import static com.sensorsdata.analytics.android.sdk.deeplink.DeepLinkManager.IS_
 @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
 class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
     private static final String TAG = "SA.LifecycleCallbacks";
-    private static final String EVENT_TIMER = "event_timer";
+    static final String EVENT_TIMER = "event_timer";
     private static final String LIB_VERSION = "$lib_version";
     private static final String APP_VERSION = "$app_version";
     private final SensorsDataAPI mSensorsDataInstance;
@@ -74,6 +76,8 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
     private boolean isMultiProcess;
     private int startActivityCount;
     private int startTimerCount;
+    /* 当前进程是否有已启动的页面，供崩溃时判断是否更新 $AppEnd 的结束时间 */
+    private static volatile boolean sForeground;
     // $AppStart 事件的时间戳
     private final String APP_START_TIME = "app_start_time";
     // $AppEnd 事件的时间戳
@@ -96,10 +100,16 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
     private final int MESSAGE_CODE_APP_END = 0;
     private final int MESSAGE_CODE_TIMER = 100;
     private final int MESSAGE_CODE_SESSION = 200;
+    private final int MESSAGE_CODE_CHECKPOINT = 300;
     /**
-     * 打点时间间隔：2000 毫秒
+     * 补发 $AppEnd 时追加的时间间隔：2000 毫秒，保证 $AppEnd 在 AppCrash 事件之后
      */
     private static final int TIME_INTERVAL = 2000;
+    /**
+     * 前台定时保存 $AppEnd 信息的时间间隔，页面 onPause、onTrimMemory 时也会保存。
+     * 进程在前台被强制结束时，补发的 $AppEnd 时间误差不超过该间隔
+     */
+    private final int mCheckpointInterval;
 
     SensorsDataActivityLifecycleCallbacks(SensorsDataAPI instance, PersistentFirstStart firstStart,
                                           PersistentFirstDay firstDay, Context context) {
@@ -110,6 +120,7 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
         this.mDbAdapter = DbAdapter.getInstance();
         this.isMultiProcess = mSensorsDataInstance.isMultiProcess();
         this.mRemoteManager = mSensorsDataInstance.mRemoteManager;
+        this.mCheckpointInterval = mSensorsDataInstance.getAppEndCheckpointInterval();
         try {
             final PackageManager manager = mContext.getPackageManager();
             final PackageInfo info = manager.getPackageInfo(mContext.getPackageName(), 0);
@@ -120,6 +131,7 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
         }
         initHandler();
         mHandler.sendEmptyMessage(MESSAGE_CODE_SESSION);
+        registerTrimMemoryCallback();
     }
 
     @Override
@@ -217,6 +229,7 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
             }
 
             if (startTimerCount++ == 0) {
+                sForeground = true;
                 /*
                  * 在启动的时候开启打点，退出时停止打点，在此处可以防止两点：
                  *  1. App 在 onResume 之前 Crash，导致只有启动没有退出；
@@ -273,6 +286,8 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
 
     @Override
     public void onActivityPaused(Activity activity) {
+        // 页面切换或者退到后台前保存 $AppEnd 信息，在子线程中写入
+        mHandler.sendEmptyMessage(MESSAGE_CODE_CHECKPOINT);
     }
 
     @Override
@@ -281,6 +296,7 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
             // 停止计时器，针对跨进程的情况，要停止当前进程的打点器
             startTimerCount--;
             if (startTimerCount == 0) {
+                sForeground = false;
                 mHandler.removeMessages(MESSAGE_CODE_TIMER);
             }
 
@@ -323,12 +339,15 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
                     int code = msg.what;
                     switch (code) {
                         case MESSAGE_CODE_TIMER:
+                        case MESSAGE_CODE_CHECKPOINT:
                             if (mSensorsDataInstance.isAutoTrackEnabled() && isAutoTrackAppEnd()) {
                                 generateAppEndData();
                             }
 
+                            // 保存后重新计时
+                            mHandler.removeMessages(MESSAGE_CODE_TIMER);
                             if (startTimerCount > 0) {
-                                mHandler.sendEmptyMessageDelayed(MESSAGE_CODE_TIMER, TIME_INTERVAL);
+                                mHandler.sendEmptyMessageDelayed(MESSAGE_CODE_TIMER, mCheckpointInterval);
                             }
                             break;
                         case MESSAGE_CODE_APP_END:
@@ -364,6 +383,33 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
         }
     }
 
+    /**
+     * 系统内存不足时保存 $AppEnd 信息，进程随后可能被回收
+     */
+    private void registerTrimMemoryCallback() {
+        try {
+            mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    if (startTimerCount > 0) {
+                        mHandler.sendEmptyMessage(MESSAGE_CODE_CHECKPOINT);
+                    }
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                }
+
+                @Override
+                public void onLowMemory() {
+                    onTrimMemory(TRIM_MEMORY_COMPLETE);
+                }
+            });
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
     /**
      * 发送 $AppEnd 事件
      *
@@ -416,6 +462,15 @@ class SensorsDataActivityLifecycleCallbacks implements Application.ActivityLifec
         }
     }
 
+    /**
+     * 当前进程是否有已启动的页面，可以在任意线程中调用
+     *
+     * @return true：有已启动的页面，false：页面都已停止或者还未启动
+     */
+    static boolean isForeground() {
+        return sForeground;
+    }
+
     /**
      * 存储当前的 AppEnd 事件关键信息
      */
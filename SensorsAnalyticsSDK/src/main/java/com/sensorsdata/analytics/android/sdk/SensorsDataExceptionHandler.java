@@ -83,9 +83,15 @@ class SensorsDataExceptionHandler implements Thread.UncaughtExceptionHandler {
              * 1. 未完成 $AppEnd 事件，触发的异常，此时需要记录下 AppEndTime
              * 2. 完成了 $AppEnd 事件，下次启动时触发的异常。还未及时更新 $AppStart 的时间戳，导致计算时长偏大，所以需要重新更新启动时间戳
              */
-            if (TextUtils.isEmpty(DbAdapter.getInstance().getAppEndData())) {
+            String appEndData = DbAdapter.getInstance().getAppEndData();
+            if (TextUtils.isEmpty(appEndData)) {
                 DbAdapter.getInstance().commitAppStartTime(SystemClock.elapsedRealtime());
             } else {
+                String endData = refreshAppEndData(appEndData,
+                        SensorsDataActivityLifecycleCallbacks.isForeground(), SystemClock.elapsedRealtime());
+                if (endData != null) {
+                    DbAdapter.getInstance().commitAppEndData(endData);
+                }
                 DbAdapter.getInstance().commitAppEndTime(System.currentTimeMillis());
             }
 
@@ -112,6 +118,29 @@ class SensorsDataExceptionHandler implements Thread.UncaughtExceptionHandler {
         }
     }
 
+    /**
+     * $AppEnd 信息只在页面切换以及定时保存，前台崩溃时更新其中的结束时间，保证补发的时长准确。
+     * 页面都已停止时 onActivityStopped 已经保存了结束时间，之后在后台等待 Session 间隔的时长不计入 $AppEnd
+     *
+     * @param appEndData 保存的 $AppEnd 信息
+     * @param foreground 当前进程是否有已启动的页面
+     * @param elapsedRealtime 崩溃时的 SystemClock.elapsedRealtime
+     * @return 更新后的 $AppEnd 信息，不需要更新或者解析失败时返回 null
+     */
+    static String refreshAppEndData(String appEndData, boolean foreground, long elapsedRealtime) {
+        if (!foreground) {
+            return null;
+        }
+        try {
+            JSONObject endDataProperty = new JSONObject(appEndData);
+            endDataProperty.put(SensorsDataActivityLifecycleCallbacks.EVENT_TIMER, elapsedRealtime);
+            return endDataProperty.toString();
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return null;
+    }
+
     private void killProcessAndExit() {
         try {
             android.os.Process.killProcess(android.os.Process.myPid());
@@ -0,0 +1,153 @@
+/*
+ * Created by dengshiwei on 2020/06/16.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import android.text.TextUtils;
+
+import com.sensorsdata.analytics.android.sdk.util.SensorsDataUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 公共属性的不可变快照，公共属性变化时整体替换。
+ * 属性名预先转换为小写，合并到事件属性时不再解析和复制整个 JSON
+ */
+final class SuperPropertiesSnapshot {
+    static final SuperPropertiesSnapshot EMPTY = new SuperPropertiesSnapshot(new String[0], new String[0], new Object[0]);
+    private final String[] mKeys;
+    private final String[] mLowerCaseKeys;
+    private final Object[] mValues;
+
+    private SuperPropertiesSnapshot(String[] keys, String[] lowerCaseKeys, Object[] values) {
+        this.mKeys = keys;
+        this.mLowerCaseKeys = lowerCaseKeys;
+        this.mValues = values;
+    }
+
+    /**
+     * 根据公共属性生成快照
+     *
+     * @param superProperties 公共属性
+     * @return 快照
+     */
+    static SuperPropertiesSnapshot create(JSONObject superProperties) {
+        if (superProperties == null || superProperties.length() == 0) {
+            return EMPTY;
+        }
+        int length = superProperties.length();
+        String[] keys = new String[length];
+        String[] lowerCaseKeys = new String[length];
+        Object[] values = new Object[length];
+        int index = 0;
+        Iterator<String> iterator = superProperties.keys();
+        while (iterator.hasNext() && index < length) {
+            String key = iterator.next();
+            keys[index] = key;
+            lowerCaseKeys[index] = key.toLowerCase(Locale.US);
+            values[index] = copyValue(superProperties.opt(key));
+            index++;
+        }
+        return new SuperPropertiesSnapshot(keys, lowerCaseKeys, values);
+    }
+
+    /**
+     * 转换为新的 JSONObject，修改返回值不影响快照
+     *
+     * @return 公共属性
+     */
+    JSONObject toJSONObject() {
+        JSONObject jsonObject = new JSONObject();
+        try {
+            for (int i = 0; i < mKeys.length; i++) {
+                jsonObject.put(mKeys[i], copyValue(mValues[i]));
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return jsonObject;
+    }
+
+    /**
+     * 获取属性值
+     *
+     * @param key 属性名
+     * @return 属性值，不存在时返回 null
+     */
+    Object opt(String key) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i].equals(key)) {
+                return mValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 将公共属性和动态公共属性合并到事件属性中，动态公共属性优先，
+     * 与动态公共属性名称相同（忽略大小写）的公共属性不合并
+     *
+     * @param dynamicSuperProperties 动态公共属性
+     * @param dest 事件属性
+     */
+    void mergeInto(JSONObject dynamicSuperProperties, JSONObject dest) {
+        Set<String> dynamicKeys = null;
+        if (dynamicSuperProperties != null && dynamicSuperProperties.length() > 0) {
+            dynamicKeys = new HashSet<>();
+            Iterator<String> iterator = dynamicSuperProperties.keys();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                if (!TextUtils.isEmpty(key)) {
+                    dynamicKeys.add(key.toLowerCase(Locale.US));
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (dynamicKeys == null || !dynamicKeys.contains(mLowerCaseKeys[i])) {
+                    dest.put(mKeys[i], copyValue(mValues[i]));
+                }
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        if (dynamicSuperProperties != null) {
+            SensorsDataUtils.mergeJSONObject(dynamicSuperProperties, dest);
+        }
+    }
+
+    /**
+     * JSONArray 可以被修改，每次使用时复制；其余类型的属性值不可变
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof JSONArray) {
+            JSONArray source = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < source.length(); i++) {
+                copy.put(source.opt(i));
+            }
+            return copy;
+        }
+        return value;
+    }
+}
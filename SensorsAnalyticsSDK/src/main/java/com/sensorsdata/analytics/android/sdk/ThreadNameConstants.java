@@ -23,4 +23,6 @@ public interface ThreadNameConstants {
     String THREAD_SEND_DISTINCT_ID = "SA.SendDistinctIDThread";
     String THREAD_GET_SDK_REMOTE_CONFIG = "SA.GetSDKRemoteConfigThread";
     String THREAD_DEEP_LINK_REQUEST = "SA.DeepLinkRequest";
+    String THREAD_DYNAMIC_SUPER_PROPERTIES = "SA.DynamicSuperPropertiesThread";
+    String THREAD_DB_MAINTENANCE = "SA.DatabaseMaintenanceThread";
 }
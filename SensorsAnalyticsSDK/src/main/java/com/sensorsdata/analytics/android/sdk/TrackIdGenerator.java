@@ -0,0 +1,59 @@
+/*
+ * Created by dengshiwei on 2020/06/15.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 生成事件的 _track_id。
+ * 只在创建时使用 SecureRandom 生成一次随机起始值，之后对自增计数做一一映射的混淆，
+ * 同一个实例连续生成的 2^32 个 _track_id 互不相同，且分布与随机数一致
+ */
+final class TrackIdGenerator {
+    private final AtomicInteger mCounter;
+
+    TrackIdGenerator() {
+        this(new SecureRandom().nextInt());
+    }
+
+    TrackIdGenerator(int seed) {
+        mCounter = new AtomicInteger(seed);
+    }
+
+    /**
+     * 生成下一个 _track_id
+     *
+     * @return _track_id
+     */
+    int nextId() {
+        return mix(mCounter.getAndIncrement());
+    }
+
+    /**
+     * MurmurHash3 的 fmix32，为 int 取值范围内的一一映射
+     */
+    private static int mix(int value) {
+        value ^= value >>> 16;
+        value *= 0x85ebca6b;
+        value ^= value >>> 13;
+        value *= 0xc2b2ae35;
+        value ^= value >>> 16;
+        return value;
+    }
+}
@@ -17,17 +17,39 @@
 
 package com.sensorsdata.analytics.android.sdk;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import android.os.Looper;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 采集任务队列，使用预先分配的环形数组存储任务，只有 TrackTaskManagerThread 一个消费者。
+ * 队列已满时按照 {@link TrackTaskOverflowPolicy} 处理，主线程中添加任务时不阻塞，避免 ANR
+ */
 public class TrackTaskManager {
+    private static final String TAG = "SA.TrackTaskManager";
+    /* 默认队列容量 */
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
     private static TrackTaskManager trackTaskManager;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
     /**
      * 请求线程队列
      */
-    private final LinkedBlockingQueue<Runnable> mTrackEventTasks;
+    private Runnable[] mTrackEventTasks;
+    private int mHead;
+    private int mSize;
+    private int mOverflowPolicy = TrackTaskOverflowPolicy.DROP_OLDEST;
+    /* 消费线程，消费线程中添加任务时不阻塞，避免死锁 */
+    private volatile Thread mConsumerThread;
+    /* 队列深度的最大值 */
+    private int mMaxQueueDepth;
+    /* 因队列已满被丢弃的任务数 */
+    private long mDroppedTaskCount;
 
     private TrackTaskManager() {
-        mTrackEventTasks = new LinkedBlockingQueue<>();
+        mTrackEventTasks = new Runnable[DEFAULT_QUEUE_CAPACITY];
     }
 
     public static synchronized TrackTaskManager getInstance() {
@@ -41,33 +63,169 @@ public class TrackTaskManager {
         return trackTaskManager;
     }
 
+    /**
+     * 设置队列容量以及队列已满时的处理策略，容量小于当前任务数时丢弃最早的任务
+     *
+     * @param capacity 队列容量
+     * @param overflowPolicy 处理策略，{@link TrackTaskOverflowPolicy}
+     */
+    void setQueuePolicy(int capacity, int overflowPolicy) {
+        mLock.lock();
+        try {
+            mOverflowPolicy = overflowPolicy;
+            capacity = Math.max(1, capacity);
+            if (capacity == mTrackEventTasks.length) {
+                return;
+            }
+            Runnable[] tasks = new Runnable[capacity];
+            int skip = Math.max(0, mSize - capacity);
+            for (int i = skip; i < mSize; i++) {
+                tasks[i - skip] = mTrackEventTasks[(mHead + i) % mTrackEventTasks.length];
+            }
+            mDroppedTaskCount += skip;
+            mTrackEventTasks = tasks;
+            mHead = 0;
+            mSize -= skip;
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
     public void addTrackEventTask(Runnable trackEvenTask) {
+        if (trackEvenTask == null) {
+            return;
+        }
+        mLock.lock();
         try {
-            mTrackEventTasks.put(trackEvenTask);
+            while (mSize == mTrackEventTasks.length) {
+                if (mOverflowPolicy == TrackTaskOverflowPolicy.DROP_NEWEST) {
+                    mDroppedTaskCount++;
+                    return;
+                } else if (mOverflowPolicy == TrackTaskOverflowPolicy.BLOCK && isBlockable()) {
+                    mNotFull.await();
+                } else {
+                    mTrackEventTasks[mHead] = null;
+                    mHead = (mHead + 1) % mTrackEventTasks.length;
+                    mSize--;
+                    mDroppedTaskCount++;
+                }
+            }
+            mTrackEventTasks[(mHead + mSize) % mTrackEventTasks.length] = trackEvenTask;
+            mSize++;
+            if (mSize > mMaxQueueDepth) {
+                mMaxQueueDepth = mSize;
+            }
+            mNotEmpty.signal();
+        } catch (InterruptedException e) {
+            mDroppedTaskCount++;
+            Thread.currentThread().interrupt();
+            SALog.i(TAG, "Interrupted while waiting for the track task queue, the task is dropped. [dropped = " + mDroppedTaskCount + "]");
         } catch (Exception e) {
             SALog.printStackTrace(e);
+        } finally {
+            mLock.unlock();
         }
     }
 
+    /**
+     * 当前线程是否可以等待队列空位，主线程以及消费线程不等待
+     *
+     * @return true: 可以等待
+     */
+    private boolean isBlockable() {
+        Thread thread = Thread.currentThread();
+        return thread != mConsumerThread && Looper.myLooper() != Looper.getMainLooper();
+    }
+
     Runnable takeTrackEventTask() {
+        mLock.lock();
         try {
-            return mTrackEventTasks.take();
+            while (mSize == 0) {
+                mNotEmpty.await();
+            }
+            return dequeue();
         } catch (Exception e) {
             SALog.printStackTrace(e);
+        } finally {
+            mLock.unlock();
         }
         return null;
     }
 
     Runnable pollTrackEventTask() {
+        mLock.lock();
         try {
-            return mTrackEventTasks.poll();
+            return mSize == 0 ? null : dequeue();
         } catch (Exception e) {
             SALog.printStackTrace(e);
+        } finally {
+            mLock.unlock();
         }
         return null;
     }
 
-    boolean isEmpty(){
-        return mTrackEventTasks.isEmpty();
+    boolean isEmpty() {
+        mLock.lock();
+        try {
+            return mSize == 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setConsumerThread(Thread consumerThread) {
+        mConsumerThread = consumerThread;
+    }
+
+    /**
+     * 获取队列中等待执行的任务数
+     *
+     * @return 任务数
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 获取队列深度的最大值
+     *
+     * @return 任务数
+     */
+    public int getMaxQueueDepth() {
+        mLock.lock();
+        try {
+            return mMaxQueueDepth;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 获取因队列已满被丢弃的任务数
+     *
+     * @return 任务数
+     */
+    public long getDroppedTaskCount() {
+        mLock.lock();
+        try {
+            return mDroppedTaskCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private Runnable dequeue() {
+        Runnable task = mTrackEventTasks[mHead];
+        mTrackEventTasks[mHead] = null;
+        mHead = (mHead + 1) % mTrackEventTasks.length;
+        mSize--;
+        mNotFull.signal();
+        return task;
     }
 }
@@ -17,30 +17,20 @@
 
 package com.sensorsdata.analytics.android.sdk;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-
+/**
+ * 采集任务队列的消费线程，按顺序在当前线程中直接执行任务
+ */
 public class TrackTaskManagerThread implements Runnable {
-    /**
-     * 创建一个可重用固定线程数的线程池
-     */
-    private static final int POOL_SIZE = 1;
-
+    private static final String TAG = "SA.TrackTaskManagerThread";
     private TrackTaskManager mTrackTaskManager;
-    /**
-     * 创建一个可重用固定线程数的线程池
-     */
-    private ExecutorService mPool;
     /**
      * 是否停止
      */
-    private boolean isStop = false;
+    private volatile boolean isStop = false;
 
     TrackTaskManagerThread() {
         try {
             this.mTrackTaskManager = TrackTaskManager.getInstance();
-            mPool = Executors.newFixedThreadPool(POOL_SIZE);
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -49,23 +39,36 @@ public class TrackTaskManagerThread implements Runnable {
     @Override
     public void run() {
         try {
+            mTrackTaskManager.setConsumerThread(Thread.currentThread());
             while (!isStop) {
-                Runnable downloadTask = mTrackTaskManager.takeTrackEventTask();
-                mPool.execute(downloadTask);
+                runTask(mTrackTaskManager.takeTrackEventTask());
             }
             while (true) {
-                Runnable downloadTask = mTrackTaskManager.pollTrackEventTask();
-                if (downloadTask == null) {
+                Runnable trackTask = mTrackTaskManager.pollTrackEventTask();
+                if (trackTask == null) {
                     break;
                 }
-                mPool.execute(downloadTask);
+                runTask(trackTask);
             }
-            mPool.shutdown();
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
     }
 
+    private void runTask(Runnable trackTask) {
+        if (trackTask == null) {
+            return;
+        }
+        try {
+            trackTask.run();
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        } catch (Throwable e) {
+            // 单个任务抛出 Error 时不能终止消费线程，否则之后的任务都不会再执行
+            SALog.i(TAG, "Track task failed", e);
+        }
+    }
+
     void stop() {
         isStop = true;
         //解决队列阻塞时,停止队列还会触发一次事件
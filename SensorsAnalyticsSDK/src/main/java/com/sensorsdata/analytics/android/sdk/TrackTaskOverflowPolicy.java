@@ -0,0 +1,30 @@
+/*
+ * Created by dengshiwei on 2020/06/12.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk;
+
+/**
+ * 采集任务队列已满时的处理策略
+ */
+public interface TrackTaskOverflowPolicy {
+    // 阻塞调用线程，直到队列有空位。主线程不阻塞，按照 DROP_OLDEST 处理
+    int BLOCK = 0;
+    // 丢弃队列中最早的任务，默认策略
+    int DROP_OLDEST = 1;
+    // 丢弃新加入的任务
+    int DROP_NEWEST = 2;
+}
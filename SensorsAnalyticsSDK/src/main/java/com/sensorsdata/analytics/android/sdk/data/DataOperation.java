@@ -29,18 +29,29 @@ import com.sensorsdata.analytics.android.sdk.SensorsDataAPI;
 
 import org.json.JSONObject;
 
-import java.io.File;
+import java.util.List;
 
 abstract class DataOperation {
     String TAG = "EventDataOperation";
     ContentResolver contentResolver;
-    private final File mDatabaseFile;
     private Context mContext;
+    /* 未开启多进程时直接读写事件存储，为 null 时通过 ContentResolver 访问 */
+    private EventStorage mEventStorage;
+    /* 通过 ContentResolver 访问时最近一次查询到的事件字节数，-1 表示尚未查询 */
+    private long mEventsBytes = -1;
 
     DataOperation(Context context) {
         this.mContext = context;
         contentResolver = context.getContentResolver();
-        mDatabaseFile = context.getDatabasePath(DbParams.DATABASE_NAME);
+    }
+
+    /**
+     * 设置直接读写的事件存储，只在未开启多进程时使用
+     *
+     * @param eventStorage EventStorage
+     */
+    void setEventStorage(EventStorage eventStorage) {
+        this.mEventStorage = eventStorage;
     }
 
     /**
@@ -58,6 +69,101 @@ abstract class DataOperation {
      */
     abstract String[] queryData(Uri uri, int limit);
 
+    /**
+     * 批量保存事件，所有事件通过 bulkInsert 在同一个事务中写入
+     *
+     * @param uri Uri
+     * @param jsonObjects 事件
+     * @return 正常返回 0，一条都没有写入时返回 DB_UPDATE_ERROR
+     */
+    int insertData(Uri uri, List<JSONObject> jsonObjects) {
+        try {
+            if (deleteDataLowMemory(uri) != 0) {
+                return DbParams.DB_OUT_OF_MEMORY_ERROR;
+            }
+            ContentValues[] valuesArray = new ContentValues[jsonObjects.size()];
+            for (int i = 0; i < valuesArray.length; i++) {
+                valuesArray[i] = buildEventValues(jsonObjects.get(i));
+            }
+            if (bulkInsertEvents(uri, valuesArray) == 0 && valuesArray.length > 0) {
+                return DbParams.DB_UPDATE_ERROR;
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return 0;
+    }
+
+    /**
+     * 生成单条事件入库的 ContentValues
+     *
+     * @param jsonObject 事件
+     * @return ContentValues
+     */
+    ContentValues buildEventValues(JSONObject jsonObject) {
+        // 只序列化一次，校验值基于同一个字符串计算
+        return buildValues(jsonObject.toString());
+    }
+
+    /**
+     * 生成 data 字段为指定内容的 ContentValues，存储本身不校验每条记录时追加 "\t" + hashCode
+     *
+     * @param data 事件数据
+     * @return ContentValues
+     */
+    ContentValues buildValues(String data) {
+        ContentValues cv = new ContentValues();
+        if (mEventStorage != null && mEventStorage.isRecordChecksumEnabled()) {
+            cv.put(DbParams.KEY_DATA, data);
+        } else {
+            cv.put(DbParams.KEY_DATA, data + "\t" + data.hashCode());
+        }
+        cv.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
+        return cv;
+    }
+
+    /**
+     * 保存单条事件
+     *
+     * @param uri Event 表的 Uri
+     * @param values 事件数据
+     */
+    void insertEvent(Uri uri, ContentValues values) {
+        if (mEventStorage != null) {
+            mEventStorage.insert(values);
+        } else {
+            contentResolver.insert(uri, values);
+        }
+    }
+
+    /**
+     * 在同一个事务中保存多条事件
+     *
+     * @param uri Event 表的 Uri
+     * @param valuesArray 事件数据
+     * @return 实际写入的条数，事务回滚时返回 0
+     */
+    int bulkInsertEvents(Uri uri, ContentValues[] valuesArray) {
+        if (mEventStorage != null) {
+            return mEventStorage.bulkInsert(valuesArray);
+        }
+        return contentResolver.bulkInsert(uri, valuesArray);
+    }
+
+    /**
+     * 按入库时间查询事件
+     *
+     * @param uri Event 表的 Uri
+     * @param limit 条数
+     * @return Cursor
+     */
+    Cursor queryEvents(Uri uri, int limit) {
+        if (mEventStorage != null) {
+            return mEventStorage.query(limit);
+        }
+        return contentResolver.query(uri, null, null, null, DbParams.KEY_CREATED_AT + " ASC LIMIT " + limit);
+    }
+
     /**
      * 查询数据条数
      *
@@ -89,12 +195,44 @@ abstract class DataOperation {
         return 0;
     }
 
+    /**
+     * 查询 Event 表中的数据条数，计数由 SensorsDataDBHelper 维护，避免每次遍历整张表
+     *
+     * @param uri Event 条数的 Uri
+     * @return 条数
+     */
+    int queryEventsCount(Uri uri) {
+        if (mEventStorage != null) {
+            return mEventStorage.count();
+        }
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(uri, null, null, null, null);
+            if (cursor != null && cursor.moveToNext()) {
+                int bytesIndex = cursor.getColumnIndex(DbParams.KEY_EVENTS_BYTES);
+                if (bytesIndex != -1) {
+                    mEventsBytes = cursor.getLong(bytesIndex);
+                }
+                return cursor.getInt(0);
+            }
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
     /**
      * 删除数据
      */
     void deleteData(Uri uri, String id) {
         try {
-            if (DbParams.DB_DELETE_ALL.equals(id)) {
+            if (mEventStorage != null) {
+                mEventStorage.delete(id);
+            } else if (DbParams.DB_DELETE_ALL.equals(id)) {
                 contentResolver.delete(uri, null, null);
             } else {
                 contentResolver.delete(uri, "_id <= ?", new String[]{id});
@@ -124,28 +262,77 @@ abstract class DataOperation {
 
 
     /**
-     * 数据库存满时删除数据
+     * 事件字节数超过最大缓存时，一次删除最早的事件，使剩余的事件不超过最大缓存的 90%，避免每次入库都触发删除
      *
      * @param uri URI
      * @return 正常返回 0
      */
     int deleteDataLowMemory(Uri uri) {
-        if (belowMemThreshold()) {
-            SALog.i(TAG, "There is not enough space left on the device to store events, so will delete 100 oldest events");
-            String[] eventsData = queryData(uri, 100);
-            if (eventsData == null) {
-                return DbParams.DB_OUT_OF_MEMORY_ERROR;
-            }
+        return deleteDataLowMemory(uri, getMaxCacheSize(mContext));
+    }
 
-            final String lastId = eventsData[0];
-            deleteData(uri, lastId);
-            if (queryDataCount(uri) <= 0) {
+    /**
+     * 事件字节数超过 maxCacheSize 时删除最早的事件，使剩余的事件不超过 maxCacheSize 的 90%
+     *
+     * @param uri URI
+     * @param maxCacheSize 最大缓存，单位字节
+     * @return 正常返回 0
+     */
+    int deleteDataLowMemory(Uri uri, long maxCacheSize) {
+        long eventsBytes = queryEventsBytes(maxCacheSize);
+        if (eventsBytes >= maxCacheSize) {
+            long bytesToFree = eventsBytes - maxCacheSize / 10 * 9;
+            SALog.i(TAG, "The events cache exceeds the max cache size, so will delete the oldest events of " + bytesToFree + " bytes");
+            if (mEventStorage != null) {
+                mEventStorage.evict(bytesToFree);
+            } else {
+                String lastId = queryEvictionId(uri, bytesToFree);
+                if (lastId != null) {
+                    deleteData(uri, lastId);
+                }
+            }
+            if (queryEventsCount(DbParams.getInstance().getEventsCountUri()) <= 0) {
                 return DbParams.DB_OUT_OF_MEMORY_ERROR;
             }
         }
         return 0;
     }
 
+    /**
+     * 事件的字节数，由存储在写入与删除时累计。
+     * 通过 ContentResolver 访问时 mEventsBytes 只在本进程查询条数时更新，不包含之后其他进程的写入和删除，
+     * 尚未查询或者达到最大缓存的 90% 时重新查询 ContentProvider 中的字节数，确认后再决定是否删除
+     */
+    private long queryEventsBytes(long maxCacheSize) {
+        if (mEventStorage != null) {
+            return mEventStorage.getStorageSize();
+        }
+        if (mEventsBytes < 0 || mEventsBytes >= maxCacheSize / 10 * 9) {
+            queryEventsCount(DbParams.getInstance().getEventsCountUri());
+        }
+        return Math.max(0, mEventsBytes);
+    }
+
+    /**
+     * 只查询 _id 与 data 字段的字节数，计算需要删除的最早事件
+     */
+    private String queryEvictionId(Uri uri, long bytesToFree) {
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(uri, SensorsDataDBHelper.EVENTS_SIZE_PROJECTION, null, null, "_id ASC");
+            if (cursor != null) {
+                return SensorsDataDBHelper.findEvictionId(cursor, bytesToFree);
+            }
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
     private long getMaxCacheSize(Context context) {
         try {
             return SensorsDataAPI.sharedInstance(context).getMaxCacheSize();
@@ -154,11 +341,4 @@ abstract class DataOperation {
             return 32 * 1024 * 1024;
         }
     }
-
-    private boolean belowMemThreshold() {
-        if (mDatabaseFile.exists()) {
-            return mDatabaseFile.length() >= getMaxCacheSize(mContext);
-        }
-        return false;
-    }
 }
@@ -17,8 +17,13 @@
 
 package com.sensorsdata.analytics.android.sdk.data;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
 import com.sensorsdata.analytics.android.sdk.encrypt.SensorsDataEncrypt;
@@ -26,26 +31,68 @@ import com.sensorsdata.analytics.android.sdk.encrypt.SensorsDataEncrypt;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.List;
+
 public class DbAdapter {
+    /* 切换事件存储方式时每次迁移的条数 */
+    private static final int MIGRATE_BATCH_SIZE = 500;
     private static DbAdapter instance;
     private final DbParams mDbParams;
     private DataOperation mTrackEventOperation;
     private DataOperation mPersistentOperation;
+    /* LoginId、Session 时长的内存缓存，null 表示需要重新查询，其它进程修改时通过 ContentObserver 置空 */
+    private String mLoginId;
+    private Integer mSessionIntervalTime;
 
-    private DbAdapter(Context context, String packageName, SensorsDataEncrypt sensorsDataEncrypt) {
+    private DbAdapter(Context context, String packageName, SensorsDataEncrypt sensorsDataEncrypt,
+                      boolean enableMultiProcess, boolean enableEventJournal) {
         mDbParams = DbParams.getInstance(packageName);
         if (sensorsDataEncrypt != null) {
             mTrackEventOperation = new EncryptDataOperation(context.getApplicationContext(), sensorsDataEncrypt);
         } else {
             mTrackEventOperation = new EventDataOperation(context.getApplicationContext());
         }
+        File journalDirectory = new File(context.getApplicationContext().getFilesDir(), DbParams.EVENT_JOURNAL_DIR);
+        if (!enableMultiProcess) {
+            // 单进程时事件直接读写数据库或者日志文件，其它数据仍通过 ContentProvider 访问
+            SQLiteEventStorage sqliteStorage = new SQLiteEventStorage(SensorsDataDBHelper.getInstance(context.getApplicationContext()));
+            if (enableEventJournal) {
+                mTrackEventOperation.setEventStorage(new JournalEventStorage(journalDirectory));
+                migrateEvents(sqliteStorage);
+            } else {
+                mTrackEventOperation.setEventStorage(sqliteStorage);
+            }
+        }
+        if ((enableMultiProcess || !enableEventJournal) && journalDirectory.exists()) {
+            // 关闭日志文件存储后，将未上报的事件迁移到数据库
+            JournalEventStorage journalStorage = new JournalEventStorage(journalDirectory);
+            migrateEvents(journalStorage);
+            if (journalStorage.count() == 0) {
+                deleteDirectory(journalDirectory);
+            }
+        }
         mPersistentOperation = new PersistentDataOperation(context.getApplicationContext());
+        registerCacheObserver(context);
     }
 
     public static DbAdapter getInstance(Context context, String packageName,
                                         SensorsDataEncrypt sensorsDataEncrypt) {
+        return getInstance(context, packageName, sensorsDataEncrypt, true, false);
+    }
+
+    /**
+     * @param context Context
+     * @param packageName 包名
+     * @param sensorsDataEncrypt 加密，为 null 时不加密
+     * @param enableMultiProcess 是否开启多进程，未开启时事件不经过 ContentProvider 直接读写
+     * @param enableEventJournal 未开启多进程时，是否使用日志文件代替数据库存储事件
+     * @return DbAdapter
+     */
+    public static DbAdapter getInstance(Context context, String packageName, SensorsDataEncrypt sensorsDataEncrypt,
+                                        boolean enableMultiProcess, boolean enableEventJournal) {
         if (instance == null) {
-            instance = new DbAdapter(context, packageName, sensorsDataEncrypt);
+            instance = new DbAdapter(context, packageName, sensorsDataEncrypt, enableMultiProcess, enableEventJournal);
         }
         return instance;
     }
@@ -68,7 +115,22 @@ public class DbAdapter {
     public int addJSON(JSONObject j) {
         int code = mTrackEventOperation.insertData(mDbParams.getEventUri(), j);
         if (code == 0) {
-            return mTrackEventOperation.queryDataCount(mDbParams.getEventUri());
+            return mTrackEventOperation.queryEventsCount(mDbParams.getEventsCountUri());
+        }
+        return code;
+    }
+
+    /**
+     * Adds a list of events to the SQLiteDatabase in a single transaction.
+     *
+     * @param list the JSON list to record
+     * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    public int addJSON(List<JSONObject> list) {
+        int code = mTrackEventOperation.insertData(mDbParams.getEventUri(), list);
+        if (code == 0) {
+            return mTrackEventOperation.queryEventsCount(mDbParams.getEventsCountUri());
         }
         return code;
     }
@@ -88,7 +150,7 @@ public class DbAdapter {
      */
     public int cleanupEvents(String last_id) {
         mTrackEventOperation.deleteData(mDbParams.getEventUri(), last_id);
-        return mTrackEventOperation.queryDataCount(mDbParams.getEventUri());
+        return mTrackEventOperation.queryEventsCount(mDbParams.getEventsCountUri());
     }
 
     /**
@@ -208,9 +270,10 @@ public class DbAdapter {
      *
      * @param loginId 登录 Id
      */
-    public void commitLoginId(String loginId) {
+    public synchronized void commitLoginId(String loginId) {
         try {
             mPersistentOperation.insertData(mDbParams.getLoginIdUri(), new JSONObject().put(DbParams.VALUE, loginId));
+            mLoginId = loginId;
         } catch (JSONException e) {
             SALog.printStackTrace(e);
         }
@@ -221,12 +284,18 @@ public class DbAdapter {
      *
      * @return LoginId
      */
-    public String getLoginId() {
+    public synchronized String getLoginId() {
+        if (mLoginId != null) {
+            return mLoginId;
+        }
+        String loginId = "";
         String[] values = mPersistentOperation.queryData(mDbParams.getLoginIdUri(), 1);
         if (values != null && values.length > 0) {
-            return values[0];
+            loginId = values[0];
+            // 查询失败时不缓存，下次重新查询
+            mLoginId = loginId;
         }
-        return "";
+        return loginId;
     }
 
     /**
@@ -234,9 +303,10 @@ public class DbAdapter {
      *
      * @param sessionIntervalTime Session 的时长
      */
-    public void commitSessionIntervalTime(int sessionIntervalTime) {
+    public synchronized void commitSessionIntervalTime(int sessionIntervalTime) {
         try {
             mPersistentOperation.insertData(mDbParams.getSessionTimeUri(), new JSONObject().put(DbParams.VALUE, sessionIntervalTime));
+            mSessionIntervalTime = sessionIntervalTime;
         } catch (JSONException e) {
             SALog.printStackTrace(e);
         }
@@ -247,11 +317,15 @@ public class DbAdapter {
      *
      * @return Session 的时长
      */
-    public int getSessionIntervalTime() {
+    public synchronized int getSessionIntervalTime() {
+        if (mSessionIntervalTime != null) {
+            return mSessionIntervalTime;
+        }
         try {
             String[] values = mPersistentOperation.queryData(mDbParams.getSessionTimeUri(), 1);
             if (values != null && values.length > 0) {
-                return Integer.parseInt(values[0]);
+                mSessionIntervalTime = Integer.parseInt(values[0]);
+                return mSessionIntervalTime;
             }
         } catch (Exception ex) {
             SALog.printStackTrace(ex);
@@ -341,14 +415,93 @@ public class DbAdapter {
         return true;
     }
 
+    /**
+     * 其它进程修改 LoginId、Session 时长后，SensorsDataContentProvider 会发出通知，此时清除缓存。
+     * 当前进程的修改也会收到通知，只多查询一次
+     */
+    private void registerCacheObserver(Context context) {
+        try {
+            ContentResolver contentResolver = context.getContentResolver();
+            contentResolver.registerContentObserver(mDbParams.getLoginIdUri(), false, new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized (DbAdapter.this) {
+                        mLoginId = null;
+                    }
+                }
+            });
+            contentResolver.registerContentObserver(mDbParams.getSessionTimeUri(), false, new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized (DbAdapter.this) {
+                        mSessionIntervalTime = null;
+                    }
+                }
+            });
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
     /**
      * 从 Event 表中读取上报数据
      *
      * @param tableName 表名
      * @param limit 条数限制
-     * @return 数据
+     * @return 数据，依次为 last_id、上报内容、数据类型以及有效数据的条数
      */
     public String[] generateDataString(String tableName, int limit) {
         return mTrackEventOperation.queryData(mDbParams.getEventUri(), limit);
     }
-}
\ No newline at end of file
+
+    /**
+     * 将事件迁移到当前使用的存储中，迁移成功的事件从原存储中删除
+     *
+     * @param from 原存储
+     */
+    private void migrateEvents(EventStorage from) {
+        Uri eventUri = mDbParams.getEventUri();
+        Cursor cursor = null;
+        try {
+            while (from.count() > 0) {
+                cursor = from.query(MIGRATE_BATCH_SIZE);
+                if (cursor == null || cursor.getCount() == 0) {
+                    break;
+                }
+                ContentValues[] valuesArray = new ContentValues[cursor.getCount()];
+                String lastId = null;
+                int index = 0;
+                while (cursor.moveToNext()) {
+                    ContentValues values = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, values);
+                    lastId = values.getAsString("_id");
+                    values.remove("_id");
+                    valuesArray[index++] = values;
+                }
+                cursor.close();
+                cursor = null;
+                // 写入失败时保留原存储中的事件，下次启动再迁移
+                if (mTrackEventOperation.bulkInsertEvents(eventUri, valuesArray) == 0
+                        || from.delete(lastId) == 0) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -28,8 +28,10 @@ public class DbParams {
     public static final String KEY_CHANNEL_RESULT = "result";
     /* 数据库名称 */
     static final String DATABASE_NAME = "sensorsdata";
+    /* 事件日志文件的目录名称 */
+    static final String EVENT_JOURNAL_DIR = "sensorsdata_events";
     /* 数据库版本号 */
-    static final int DATABASE_VERSION = 5;
+    static final int DATABASE_VERSION = 6;
     static final String TABLE_ACTIVITY_START_COUNT = "activity_started_count";
     static final String TABLE_APP_START_TIME = "app_start_time";
     static final String TABLE_APP_END_TIME = "app_end_time";
@@ -38,9 +40,15 @@ public class DbParams {
     public static final String TABLE_FIRST_PROCESS_START = "first_process_start";
     static final String TABLE_SESSION_INTERVAL_TIME = "session_interval_time";
     static final String TABLE_LOGIN_ID = "events_login_id";
+    static final String TABLE_EVENTS_COUNT = "events_count";
     /* Event 表字段 */
     static final String KEY_DATA = "data";
     static final String KEY_CREATED_AT = "created_at";
+    /* 加密数据的 ekey 以及公钥版本，未加密的数据为 null */
+    static final String KEY_EKEY = "ekey";
+    static final String KEY_PKV = "pkv";
+    /* Event 条数查询结果中的字节数字段 */
+    static final String KEY_EVENTS_BYTES = "events_bytes";
     /* 数据库状态 */
     static final int DB_UPDATE_ERROR = -1;
     static final String VALUE = "value";
@@ -50,7 +58,8 @@ public class DbParams {
     static final String DB_DELETE_ALL = "DB_DELETE_ALL";
     private static DbParams instance;
     private final Uri mUri, mActivityStartCountUri, mAppStartTimeUri, mAppEndUri,
-            mAppEndDataUri, mSessionTimeUri, mLoginIdUri, mChannelPersistentUri, mSubProcessUri, mFirstProcessUri;
+            mAppEndDataUri, mSessionTimeUri, mLoginIdUri, mChannelPersistentUri, mSubProcessUri, mFirstProcessUri,
+            mEventsCountUri;
 
     private DbParams(String packageName) {
         mUri = Uri.parse("content://" + packageName + ".SensorsDataContentProvider/" + TABLE_EVENTS);
@@ -63,6 +72,7 @@ public class DbParams {
         mChannelPersistentUri = Uri.parse("content://" + packageName + ".SensorsDataContentProvider/" + TABLE_CHANNEL_PERSISTENT);
         mSubProcessUri = Uri.parse("content://" + packageName + ".SensorsDataContentProvider/" + TABLE_SUB_PROCESS_FLUSH_DATA);
         mFirstProcessUri = Uri.parse("content://" + packageName + ".SensorsDataContentProvider/" + TABLE_FIRST_PROCESS_START);
+        mEventsCountUri = Uri.parse("content://" + packageName + ".SensorsDataContentProvider/" + TABLE_EVENTS_COUNT);
     }
 
     public static DbParams getInstance(String packageName) {
@@ -168,4 +178,13 @@ public class DbParams {
     public Uri getFirstProcessUri() {
         return mFirstProcessUri;
     }
+
+    /**
+     * 获取 Event 表条数 Uri
+     *
+     * @return Uri
+     */
+    Uri getEventsCountUri() {
+        return mEventsCountUri;
+    }
 }
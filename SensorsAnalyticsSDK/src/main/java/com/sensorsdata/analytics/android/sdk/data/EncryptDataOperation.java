@@ -29,10 +29,13 @@ import com.sensorsdata.analytics.android.sdk.encrypt.SensorsDataEncrypt;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 class EncryptDataOperation extends DataOperation {
+    private static final String EKEY = "ekey";
+    private static final String KEY_VER = "pkv";
+    private static final String PAYLOADS = "payloads";
 
     private SensorsDataEncrypt mSensorsDataEncrypt;
 
@@ -47,24 +50,44 @@ class EncryptDataOperation extends DataOperation {
             if (deleteDataLowMemory(uri) != 0) {
                 return DbParams.DB_OUT_OF_MEMORY_ERROR;
             }
-            jsonObject = mSensorsDataEncrypt.encryptTrackData(jsonObject);
-            ContentValues cv = new ContentValues();
-            cv.put(DbParams.KEY_DATA, jsonObject.toString() + "\t" + jsonObject.toString().hashCode());
-            cv.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
-            contentResolver.insert(uri, cv);
+            insertEvent(uri, buildEventValues(jsonObject));
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
         return 0;
     }
 
+    @Override
+    ContentValues buildEventValues(JSONObject jsonObject) {
+        if (mSensorsDataEncrypt.isBatchEncrypt()) {
+            // 入库时只进行本地加密，上报时整批压缩、加密
+            String data = mSensorsDataEncrypt.encryptLocalData(jsonObject.toString());
+            if (data != null) {
+                return buildValues(data);
+            }
+        }
+        JSONObject encryptObject = mSensorsDataEncrypt.encryptTrackData(jsonObject);
+        if (encryptObject.has(EKEY)) {
+            // ekey、pkv 单独存储，data 字段只保存 payload，上报时无需解析 JSON
+            try {
+                ContentValues cv = buildValues(encryptObject.getString(PAYLOADS));
+                cv.put(DbParams.KEY_EKEY, encryptObject.getString(EKEY));
+                cv.put(DbParams.KEY_PKV, encryptObject.getInt(KEY_VER));
+                return cv;
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+            }
+        }
+        return super.buildEventValues(encryptObject);
+    }
+
     @Override
     int insertData(Uri uri, ContentValues contentValues) {
         try {
             if (deleteDataLowMemory(uri) != 0) {
                 return DbParams.DB_OUT_OF_MEMORY_ERROR;
             }
-            contentResolver.insert(uri, contentValues);
+            insertEvent(uri, contentValues);
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -77,27 +100,53 @@ class EncryptDataOperation extends DataOperation {
         String data = null;
         String last_id = null;
         String gzipType = DbParams.GZIP_DATA_ENCRYPT;
+        int eventCount = 0;
         try {
-            Map<String, JSONArray> dataEncryptMap = new HashMap<>();
+            Map<String, EncryptGroup> encryptGroups = new LinkedHashMap<>();
             JSONArray dataJsonArray = new JSONArray();
-            cursor = contentResolver.query(uri, null, null, null, DbParams.KEY_CREATED_AT + " ASC LIMIT " + limit);
+            // 本地加密的数据，解密后直接拼接为 JSONArray 字符串，不解析 JSON
+            StringBuilder localData = null;
+            cursor = queryEvents(uri, limit);
             if (cursor != null) {
+                final int idIndex = cursor.getColumnIndex("_id");
+                final int dataIndex = cursor.getColumnIndex(DbParams.KEY_DATA);
+                final int ekeyIndex = cursor.getColumnIndex(DbParams.KEY_EKEY);
+                final int pkvIndex = cursor.getColumnIndex(DbParams.KEY_PKV);
                 String keyData;
                 JSONObject jsonObject;
-                final String EKEY = "ekey";
-                final String KEY_VER = "pkv";
-                final String PAYLOADS = "payloads";
                 while (cursor.moveToNext()) {
                     if (cursor.isLast()) {
-                        last_id = cursor.getString(cursor.getColumnIndex("_id"));
+                        last_id = cursor.getString(idIndex);
                     }
                     try {
-                        keyData = cursor.getString(cursor.getColumnIndex(DbParams.KEY_DATA));
+                        keyData = cursor.getString(dataIndex);
                         keyData = parseData(keyData);
                         if (TextUtils.isEmpty(keyData)) {
                             continue;
                         }
+                        if (ekeyIndex != -1 && !cursor.isNull(ekeyIndex)) {
+                            // data 字段为 payload，按 ekey、pkv 分组
+                            addPayload(encryptGroups, cursor.getString(ekeyIndex), cursor.getInt(pkvIndex), keyData);
+                            eventCount++;
+                            continue;
+                        }
+                        if (mSensorsDataEncrypt.isLocalData(keyData)) {
+                            keyData = mSensorsDataEncrypt.decryptLocalData(keyData);
+                            if (TextUtils.isEmpty(keyData)) {
+                                continue;
+                            }
+                            if (localData == null) {
+                                localData = new StringBuilder(keyData.length() * Math.min(limit, 64) + 2).append('[');
+                            } else {
+                                localData.append(',');
+                            }
+                            localData.append(keyData);
+                            eventCount++;
+                            continue;
+                        }
+                        eventCount++;
 
+                        // 升级前入库的数据，ekey、pkv 保存在 data 字段中
                         jsonObject = new JSONObject(keyData);
                         boolean isHasEkey = jsonObject.has(EKEY);
                         if (!isHasEkey) { // 如果没有包含 Ekey 字段，则重新进行加密
@@ -105,14 +154,7 @@ class EncryptDataOperation extends DataOperation {
                         }
 
                         if (jsonObject.has(EKEY)) {
-                            String key = jsonObject.getString(EKEY) + "$" + jsonObject.getInt(KEY_VER);
-                            if (dataEncryptMap.containsKey(key)) {
-                                dataEncryptMap.get(key).put(jsonObject.getString(PAYLOADS));
-                            } else {
-                                JSONArray jsonArray = new JSONArray();
-                                jsonArray.put(jsonObject.getString(PAYLOADS));
-                                dataEncryptMap.put(key, jsonArray);
-                            }
+                            addPayload(encryptGroups, jsonObject.getString(EKEY), jsonObject.getInt(KEY_VER), jsonObject.getString(PAYLOADS));
                         } else {
                             dataJsonArray.put(jsonObject);
                         }
@@ -120,17 +162,30 @@ class EncryptDataOperation extends DataOperation {
                         SALog.printStackTrace(e);
                     }
                 }
-                JSONArray dataEncryptJsonArray = new JSONArray();
-                for (String key : dataEncryptMap.keySet()) {
-                    jsonObject = new JSONObject();
-                    jsonObject.put(EKEY, key.substring(0, key.indexOf("$")));
-                    jsonObject.put(KEY_VER, Integer.valueOf(key.substring(key.indexOf("$") + 1)));
-                    jsonObject.put(PAYLOADS, dataEncryptMap.get(key));
-                    jsonObject.put("flush_time", System.currentTimeMillis());
-                    dataEncryptJsonArray.put(jsonObject);
+                StringBuilder encryptData = new StringBuilder();
+                long flushTime = System.currentTimeMillis();
+                if (localData != null) {
+                    String localEvents = localData.append(']').toString();
+                    jsonObject = mSensorsDataEncrypt.encryptBatchData(localEvents);
+                    if (jsonObject != null) {
+                        jsonObject.put("flush_time", flushTime);
+                        encryptData.append(jsonObject.toString());
+                    } else {
+                        // 密钥为空时与逐条加密的处理一致，上报未加密的数据
+                        JSONArray localEventArray = new JSONArray(localEvents);
+                        for (int i = 0; i < localEventArray.length(); i++) {
+                            dataJsonArray.put(localEventArray.get(i));
+                        }
+                    }
+                }
+                for (EncryptGroup group : encryptGroups.values()) {
+                    if (encryptData.length() > 0) {
+                        encryptData.append(',');
+                    }
+                    group.writeTo(encryptData, flushTime);
                 }
-                if (dataEncryptJsonArray.length() > 0) {
-                    data = dataEncryptJsonArray.toString();
+                if (encryptData.length() > 0) {
+                    data = "[" + encryptData + "]";
                 } else {
                     data = dataJsonArray.toString();
                     gzipType = DbParams.GZIP_DATA_EVENT;
@@ -144,7 +199,7 @@ class EncryptDataOperation extends DataOperation {
             }
         }
         if (last_id != null) {
-            return new String[]{last_id, data, gzipType};
+            return new String[]{last_id, data, gzipType, String.valueOf(eventCount)};
         }
         return null;
     }
@@ -153,4 +208,42 @@ class EncryptDataOperation extends DataOperation {
     void deleteData(Uri uri, String id) {
         super.deleteData(uri, id);
     }
+
+    private static void addPayload(Map<String, EncryptGroup> encryptGroups, String ekey, int pkv, String payload) {
+        String key = pkv + "$" + ekey;
+        EncryptGroup group = encryptGroups.get(key);
+        if (group == null) {
+            group = new EncryptGroup(ekey, pkv);
+            encryptGroups.put(key, group);
+        }
+        group.add(payload);
+    }
+
+    /**
+     * 相同 ekey、pkv 的 payload，直接拼接为上报的 JSON 字符串
+     */
+    private static class EncryptGroup {
+        private final String mEkey;
+        private final int mPkv;
+        private final StringBuilder mPayloads = new StringBuilder();
+
+        EncryptGroup(String ekey, int pkv) {
+            this.mEkey = ekey;
+            this.mPkv = pkv;
+        }
+
+        void add(String payload) {
+            if (mPayloads.length() > 0) {
+                mPayloads.append(',');
+            }
+            mPayloads.append(JSONObject.quote(payload));
+        }
+
+        void writeTo(StringBuilder builder, long flushTime) {
+            builder.append("{\"").append(EKEY).append("\":").append(JSONObject.quote(mEkey))
+                    .append(",\"").append(KEY_VER).append("\":").append(mPkv)
+                    .append(",\"").append(PAYLOADS).append("\":[").append(mPayloads)
+                    .append("],\"flush_time\":").append(flushTime).append('}');
+        }
+    }
 }
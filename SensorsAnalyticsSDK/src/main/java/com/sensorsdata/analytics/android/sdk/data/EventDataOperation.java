@@ -41,10 +41,7 @@ class EventDataOperation extends DataOperation {
             if (deleteDataLowMemory(uri) != 0) {
                 return DbParams.DB_OUT_OF_MEMORY_ERROR;
             }
-            ContentValues cv = new ContentValues();
-            cv.put(DbParams.KEY_DATA, jsonObject.toString() + "\t" + jsonObject.toString().hashCode());
-            cv.put(DbParams.KEY_CREATED_AT, System.currentTimeMillis());
-            contentResolver.insert(uri, cv);
+            insertEvent(uri, buildEventValues(jsonObject));
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -57,7 +54,7 @@ class EventDataOperation extends DataOperation {
             if (deleteDataLowMemory(uri) != 0) {
                 return DbParams.DB_OUT_OF_MEMORY_ERROR;
             }
-            contentResolver.insert(uri, contentValues);
+            insertEvent(uri, contentValues);
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -69,8 +66,9 @@ class EventDataOperation extends DataOperation {
         Cursor cursor = null;
         String data = null;
         String last_id = null;
+        int eventCount = 0;
         try {
-            cursor = contentResolver.query(uri, null, null, null, DbParams.KEY_CREATED_AT + " ASC LIMIT " + limit);
+            cursor = queryEvents(uri, limit);
             if (cursor != null) {
                 StringBuilder dataBuilder = new StringBuilder();
                 final String flush_time = ",\"_flush_time\":";
@@ -90,6 +88,7 @@ class EventDataOperation extends DataOperation {
                                     .append(flush_time)
                                     .append(System.currentTimeMillis())
                                     .append("}").append(suffix);
+                            eventCount++;
                         }
                     } catch (Exception e) {
                         SALog.printStackTrace(e);
@@ -108,7 +107,7 @@ class EventDataOperation extends DataOperation {
         }
 
         if (last_id != null) {
-            return new String[]{last_id, data, DbParams.GZIP_DATA_EVENT};
+            return new String[]{last_id, data, DbParams.GZIP_DATA_EVENT, String.valueOf(eventCount)};
         }
         return null;
     }
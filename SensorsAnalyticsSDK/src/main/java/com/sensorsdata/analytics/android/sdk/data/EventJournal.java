@@ -0,0 +1,586 @@
+/*
+ * Created by dengshiwei on 2020/06/23.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.sensorsdata.analytics.android.sdk.util.Base64Coder.CHARSET_UTF8;
+
+/**
+ * 分段的追加日志，每个分段文件通过内存映射写入。
+ * 记录格式为 [长度][CRC32][记录 ID][入库时间][pkv][ekey 长度][ekey][data]，长度为 0 表示分段的结尾，
+ * 读取时从持久化的确认位置开始，分段中的记录全部确认后直接删除分段文件。
+ * 确认时先将分段同步到磁盘，确认位置写入临时文件后重命名，保证崩溃后不会读到不完整的确认位置而重新上报已确认的记录。
+ */
+class EventJournal {
+    private static final String TAG = "SA.EventJournal";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    /* 确认位置先写入临时文件并同步到磁盘，再重命名为 CHECKPOINT_FILE */
+    private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+    /* 分段文件的默认大小，单条记录超过该大小时分段与记录等大 */
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    /* 长度与 CRC32 */
+    private static final int HEADER_SIZE = 8;
+    /* 记录 ID、入库时间、pkv、ekey 长度 */
+    private static final int FIXED_BODY_SIZE = 8 + 8 + 4 + 2;
+    /* 确认的记录 ID、首个分段的起始 ID、读取位置、CRC32 */
+    private static final int CHECKPOINT_SIZE = 8 + 8 + 4 + 4;
+    private static final int NO_PKV = Integer.MIN_VALUE;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final LinkedList<Segment> mSegments = new LinkedList<>();
+    /* 已确认（删除）的最大记录 ID */
+    private long mAckId;
+    /* 首个分段中第一条未确认记录的位置 */
+    private int mReadPosition;
+    private long mNextId = 1;
+    private int mCount;
+    /* 未确认记录占用的字节数 */
+    private long mBytes;
+
+    EventJournal(File directory) {
+        this(directory, SEGMENT_SIZE);
+    }
+
+    EventJournal(File directory, int segmentSize) {
+        this.mDirectory = directory;
+        this.mSegmentSize = segmentSize;
+        load();
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param createdAt 入库时间
+     * @param data 事件数据
+     * @param ekey 加密的 ekey，未加密时为 null
+     * @param pkv 公钥版本，未加密时为 null
+     * @return 记录 ID，失败返回 -1
+     */
+    synchronized long append(long createdAt, String data, String ekey, Integer pkv) {
+        try {
+            byte[] dataBytes = data.getBytes(CHARSET_UTF8);
+            byte[] ekeyBytes = ekey == null ? null : ekey.getBytes(CHARSET_UTF8);
+            if (ekeyBytes != null && ekeyBytes.length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("ekey is too long: " + ekeyBytes.length);
+            }
+            int bodySize = FIXED_BODY_SIZE + (ekeyBytes == null ? 0 : ekeyBytes.length) + dataBytes.length;
+            long id = mNextId;
+            ByteBuffer body = ByteBuffer.allocate(bodySize);
+            body.putLong(id).putLong(createdAt).putInt(pkv == null ? NO_PKV : pkv);
+            if (ekeyBytes == null) {
+                body.putShort((short) -1);
+            } else {
+                body.putShort((short) ekeyBytes.length).put(ekeyBytes);
+            }
+            body.put(dataBytes);
+
+            Segment segment = mSegments.isEmpty() ? null : mSegments.getLast();
+            // 保留 4 个字节写入结尾标记
+            int recordSize = HEADER_SIZE + bodySize;
+            if (segment == null || segment.remaining() < recordSize + 4) {
+                segment = Segment.create(mDirectory, id, Math.max(mSegmentSize, recordSize + 4));
+                mSegments.add(segment);
+            }
+            segment.write(body.array(), crc(body.array(), 0, bodySize), id);
+            mNextId = id + 1;
+            mCount++;
+            mBytes += recordSize;
+            return id;
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+        return -1;
+    }
+
+    /**
+     * 按写入顺序读取最早的未确认记录
+     *
+     * @param limit 条数
+     * @return 记录
+     */
+    synchronized List<Record> read(int limit) {
+        List<Record> records = new ArrayList<>(Math.min(Math.max(limit, 0), mCount));
+        int position = mReadPosition;
+        for (Segment segment : mSegments) {
+            while (records.size() < limit && position < segment.mWritePosition) {
+                Record record = segment.read(position);
+                if (record == null) {
+                    break;
+                }
+                position += record.mSize;
+                if (record.mId > mAckId) {
+                    records.add(record);
+                }
+            }
+            if (records.size() >= limit) {
+                break;
+            }
+            position = 0;
+        }
+        return records;
+    }
+
+    /**
+     * 确认 ID 小于等于 id 的记录，全部确认的分段文件直接删除
+     *
+     * @param id 记录 ID
+     * @return 确认的条数
+     */
+    synchronized int ack(long id) {
+        if (id <= mAckId) {
+            return 0;
+        }
+        mAckId = Math.min(id, mNextId - 1);
+        int ackCount = 0;
+        long ackBytes = 0;
+        List<Segment> ackedSegments = new ArrayList<>();
+        while (!mSegments.isEmpty()) {
+            Segment segment = mSegments.getFirst();
+            while (mReadPosition < segment.mWritePosition) {
+                Record record = segment.read(mReadPosition);
+                if (record == null || record.mId > mAckId) {
+                    break;
+                }
+                mReadPosition += record.mSize;
+                ackCount++;
+                ackBytes += record.mSize;
+            }
+            if (mReadPosition < segment.mWritePosition && segment.mLastId > mAckId) {
+                break;
+            }
+            if (mSegments.size() == 1 && segment.remaining() >= mSegmentSize / 4) {
+                // 最后一个分段仍有空间时继续写入，避免每次上报后重新创建文件
+                break;
+            }
+            mSegments.removeFirst();
+            ackedSegments.add(segment);
+            mReadPosition = 0;
+        }
+        mCount = mSegments.isEmpty() ? 0 : Math.max(0, mCount - ackCount);
+        mBytes = mSegments.isEmpty() ? 0 : Math.max(0, mBytes - ackBytes);
+        // 确认位置保存后再删除分段，崩溃后加载时会删除已全部确认的分段
+        saveCheckpoint();
+        for (Segment segment : ackedSegments) {
+            segment.delete();
+        }
+        return ackCount;
+    }
+
+    /**
+     * 确认所有记录
+     *
+     * @return 确认的条数
+     */
+    synchronized int ackAll() {
+        int count = mCount;
+        mAckId = mNextId - 1;
+        List<Segment> ackedSegments = new ArrayList<>(mSegments);
+        mSegments.clear();
+        mReadPosition = 0;
+        mCount = 0;
+        mBytes = 0;
+        saveCheckpoint();
+        for (Segment segment : ackedSegments) {
+            segment.delete();
+        }
+        return count;
+    }
+
+    /**
+     * 未确认的记录条数
+     *
+     * @return 条数
+     */
+    synchronized int count() {
+        return mCount;
+    }
+
+    /**
+     * 未确认记录占用的字节数
+     *
+     * @return 字节数
+     */
+    synchronized long size() {
+        return mBytes;
+    }
+
+    /**
+     * 计算需要确认的最早记录，确认 ID 小于等于返回值的记录后至少释放 bytesToFree 字节。
+     * 只读取记录长度和 ID，不解析记录内容
+     *
+     * @param bytesToFree 需要释放的字节数
+     * @return 记录 ID，没有记录时返回 -1
+     */
+    synchronized long findEvictionId(long bytesToFree) {
+        long lastId = -1;
+        long freedBytes = 0;
+        int position = mReadPosition;
+        for (Segment segment : mSegments) {
+            while (freedBytes < bytesToFree && position < segment.mWritePosition) {
+                int recordSize = HEADER_SIZE + segment.mBuffer.getInt(position);
+                long id = segment.mBuffer.getLong(position + HEADER_SIZE);
+                position += recordSize;
+                if (id > mAckId) {
+                    freedBytes += recordSize;
+                    lastId = id;
+                }
+            }
+            if (freedBytes >= bytesToFree) {
+                break;
+            }
+            position = 0;
+        }
+        return lastId;
+    }
+
+    private void load() {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            SALog.i(TAG, "Could not create journal directory: " + mDirectory);
+            return;
+        }
+        long headBaseId = readCheckpoint();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Long> baseIds = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    baseIds.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    SALog.printStackTrace(e);
+                }
+            }
+        }
+        Long[] sortedIds = baseIds.toArray(new Long[0]);
+        Arrays.sort(sortedIds);
+        long lastId = mAckId;
+        for (Long baseId : sortedIds) {
+            Segment segment = Segment.open(mDirectory, baseId);
+            if (segment == null) {
+                continue;
+            }
+            // 首个分段从持久化的读取位置开始扫描，之前的记录均已确认
+            int position = mSegments.isEmpty() && baseId == headBaseId ? mReadPosition : 0;
+            if (position > segment.capacity()) {
+                position = 0;
+            }
+            if (mSegments.isEmpty()) {
+                mReadPosition = position;
+            }
+            segment.recover(position, mAckId);
+            if (segment.mLastId <= mAckId) {
+                // 全部已确认，删除分段时已崩溃
+                segment.delete();
+                mReadPosition = 0;
+                continue;
+            }
+            mCount += segment.mUnackedCount;
+            mBytes += segment.mUnackedBytes;
+            lastId = Math.max(lastId, segment.mLastId);
+            mSegments.add(segment);
+        }
+        if (mSegments.isEmpty()) {
+            mReadPosition = 0;
+        }
+        mNextId = lastId + 1;
+    }
+
+    /**
+     * 读取持久化的确认位置。重命名前崩溃时临时文件可能是完整的，与 CHECKPOINT_FILE 比较后使用较新的确认位置
+     *
+     * @return 持久化的首个分段起始 ID，读取失败时返回 -1
+     */
+    private long readCheckpoint() {
+        File tempFile = new File(mDirectory, CHECKPOINT_TEMP_FILE);
+        ByteBuffer checkpoint = readCheckpoint(new File(mDirectory, CHECKPOINT_FILE));
+        ByteBuffer tempCheckpoint = readCheckpoint(tempFile);
+        if (tempFile.exists() && !tempFile.delete()) {
+            SALog.i(TAG, "Could not delete journal checkpoint: " + tempFile.getName());
+        }
+        if (tempCheckpoint != null && (checkpoint == null || tempCheckpoint.getLong(0) > checkpoint.getLong(0))) {
+            checkpoint = tempCheckpoint;
+        }
+        if (checkpoint == null) {
+            return -1;
+        }
+        mAckId = checkpoint.getLong();
+        long headBaseId = checkpoint.getLong();
+        mReadPosition = checkpoint.getInt();
+        return headBaseId;
+    }
+
+    /**
+     * @return 校验通过的确认位置，文件不存在、不完整或者校验失败时返回 null
+     */
+    private static ByteBuffer readCheckpoint(File file) {
+        if (!file.exists() || file.length() < CHECKPOINT_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[CHECKPOINT_SIZE];
+            raf.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt(CHECKPOINT_SIZE - 4) != crc(bytes, 0, CHECKPOINT_SIZE - 4)) {
+                SALog.i(TAG, "Discard corrupted journal checkpoint: " + file.getName());
+                return null;
+            }
+            return buffer;
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+        } finally {
+            closeQuietly(raf);
+        }
+        return null;
+    }
+
+    /**
+     * 先将分段同步到磁盘，再将确认位置写入临时文件并同步，最后重命名为 CHECKPOINT_FILE。
+     * 重命名是原子操作，崩溃时 CHECKPOINT_FILE 只会是之前或者本次完整的确认位置
+     */
+    private void saveCheckpoint() {
+        for (Segment segment : mSegments) {
+            segment.force();
+        }
+        File tempFile = new File(mDirectory, CHECKPOINT_TEMP_FILE);
+        RandomAccessFile raf = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+            buffer.putLong(mAckId)
+                    .putLong(mSegments.isEmpty() ? -1 : mSegments.getFirst().mBaseId)
+                    .putInt(mReadPosition);
+            buffer.putInt(crc(buffer.array(), 0, CHECKPOINT_SIZE - 4));
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(0);
+            raf.write(buffer.array());
+            raf.getFD().sync();
+            raf.close();
+            raf = null;
+            if (!tempFile.renameTo(new File(mDirectory, CHECKPOINT_FILE))) {
+                SALog.i(TAG, "Could not rename journal checkpoint: " + tempFile.getName());
+            }
+        } catch (IOException e) {
+            SALog.printStackTrace(e);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    static class Record {
+        final long mId;
+        final long mCreatedAt;
+        final String mData;
+        final String mEkey;
+        final Integer mPkv;
+        /* 记录在分段中占用的字节数 */
+        private final int mSize;
+
+        private Record(long id, long createdAt, String data, String ekey, Integer pkv, int size) {
+            this.mId = id;
+            this.mCreatedAt = createdAt;
+            this.mData = data;
+            this.mEkey = ekey;
+            this.mPkv = pkv;
+            this.mSize = size;
+        }
+    }
+
+    private static class Segment {
+        private final File mFile;
+        private final long mBaseId;
+        private final MappedByteBuffer mBuffer;
+        private int mWritePosition;
+        private long mLastId;
+        /* 是否有未同步到磁盘的写入 */
+        private boolean mDirty;
+        /* 加载时统计的未确认条数以及字节数 */
+        private int mUnackedCount;
+        private long mUnackedBytes;
+
+        private Segment(File file, long baseId, MappedByteBuffer buffer) {
+            this.mFile = file;
+            this.mBaseId = baseId;
+            this.mBuffer = buffer;
+            this.mLastId = baseId - 1;
+        }
+
+        static Segment create(File directory, long baseId, int size) throws IOException {
+            File file = new File(directory, baseId + SEGMENT_SUFFIX);
+            return new Segment(file, baseId, map(file, size));
+        }
+
+        static Segment open(File directory, long baseId) {
+            File file = new File(directory, baseId + SEGMENT_SUFFIX);
+            try {
+                if (file.length() < HEADER_SIZE + 4) {
+                    file.delete();
+                    return null;
+                }
+                return new Segment(file, baseId, map(file, (int) file.length()));
+            } catch (IOException e) {
+                SALog.printStackTrace(e);
+            }
+            return null;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() != size) {
+                    raf.setLength(size);
+                }
+                // 文件关闭后映射仍然有效
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        int capacity() {
+            return mBuffer.capacity();
+        }
+
+        int remaining() {
+            return mBuffer.capacity() - mWritePosition;
+        }
+
+        void write(byte[] body, int crc, long id) {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mWritePosition);
+            // 先写入内容和下一条记录的结尾标记，最后写入长度，避免读到不完整的记录
+            buffer.putInt(0).putInt(crc).put(body);
+            if (buffer.remaining() >= 4) {
+                buffer.putInt(0);
+            }
+            mBuffer.putInt(mWritePosition, body.length);
+            mWritePosition += HEADER_SIZE + body.length;
+            mLastId = id;
+            mDirty = true;
+        }
+
+        /**
+         * 将写入的内容同步到磁盘
+         */
+        void force() {
+            if (mDirty) {
+                mBuffer.force();
+                mDirty = false;
+            }
+        }
+
+        /**
+         * 读取 position 处的记录，记录不完整或者校验失败时返回 null
+         */
+        Record read(int position) {
+            if (position + HEADER_SIZE > mBuffer.capacity()) {
+                return null;
+            }
+            int length = mBuffer.getInt(position);
+            if (length < FIXED_BODY_SIZE || length > mBuffer.capacity() - position - HEADER_SIZE) {
+                return null;
+            }
+            int crc = mBuffer.getInt(position + 4);
+            byte[] body = new byte[length];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(body);
+            if (crc(body, 0, length) != crc) {
+                return null;
+            }
+            try {
+                ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+                long id = bodyBuffer.getLong();
+                long createdAt = bodyBuffer.getLong();
+                int pkv = bodyBuffer.getInt();
+                int ekeyLength = bodyBuffer.getShort();
+                String ekey = null;
+                if (ekeyLength >= 0) {
+                    ekey = new String(body, bodyBuffer.position(), ekeyLength, CHARSET_UTF8);
+                    bodyBuffer.position(bodyBuffer.position() + ekeyLength);
+                }
+                String data = new String(body, bodyBuffer.position(), bodyBuffer.remaining(), CHARSET_UTF8);
+                return new Record(id, createdAt, data, ekey, pkv == NO_PKV ? null : pkv, HEADER_SIZE + length);
+            } catch (Exception e) {
+                SALog.printStackTrace(e);
+            }
+            return null;
+        }
+
+        /**
+         * 从 position 开始扫描，确定写入位置以及最后一条记录的 ID，不完整的记录之后的内容全部丢弃
+         */
+        void recover(int position, long ackId) {
+            Record record;
+            while ((record = read(position)) != null) {
+                position += record.mSize;
+                mLastId = record.mId;
+                if (record.mId > ackId) {
+                    mUnackedCount++;
+                    mUnackedBytes += record.mSize;
+                }
+            }
+            mWritePosition = position;
+            if (position + 4 <= mBuffer.capacity() && mBuffer.getInt(position) != 0) {
+                SALog.i(TAG, "Discard corrupted journal data in " + mFile.getName() + " at " + position);
+                mBuffer.putInt(position, 0);
+                mDirty = true;
+            }
+        }
+
+        void delete() {
+            if (!mFile.delete()) {
+                SALog.i(TAG, "Could not delete journal segment: " + mFile.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Created by dengshiwei on 2020/06/23.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * 未开启多进程时事件的存储，不经过 ContentProvider。
+ * ContentValues 与 Cursor 的字段与 Event 表保持一致：_id、data、created_at、ekey、pkv
+ */
+interface EventStorage {
+    /**
+     * 插入一条事件
+     *
+     * @param values 事件数据，必须包含 data 和 created_at
+     * @return 插入的事件 ID，失败返回 -1
+     */
+    long insert(ContentValues values);
+
+    /**
+     * 插入多条事件
+     *
+     * @param valuesArray 事件数据
+     * @return 插入成功的条数
+     */
+    int bulkInsert(ContentValues[] valuesArray);
+
+    /**
+     * 按入库顺序查询最早的事件
+     *
+     * @param limit 条数
+     * @return Cursor，失败返回 null
+     */
+    Cursor query(int limit);
+
+    /**
+     * 删除事件
+     *
+     * @param id {@link DbParams#DB_DELETE_ALL} 删除全部，否则删除 _id &lt;= id 的事件
+     * @return 删除的条数
+     */
+    int delete(String id);
+
+    /**
+     * 事件条数
+     *
+     * @return 条数
+     */
+    int count();
+
+    /**
+     * 事件占用的字节数，写入与删除时累计，不读取文件大小
+     *
+     * @return 字节数
+     */
+    long getStorageSize();
+
+    /**
+     * 删除最早的事件，至少释放 bytesToFree 字节
+     *
+     * @param bytesToFree 需要释放的字节数
+     * @return 删除的条数
+     */
+    int evict(long bytesToFree);
+
+    /**
+     * 是否对每条记录单独校验，为 true 时 data 字段不再追加 "\t" + hashCode
+     *
+     * @return 是否校验
+     */
+    boolean isRecordChecksumEnabled();
+}
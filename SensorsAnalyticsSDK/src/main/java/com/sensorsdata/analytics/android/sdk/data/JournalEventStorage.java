@@ -0,0 +1,104 @@
+/*
+ * Created by dengshiwei on 2020/06/23.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * 基于 {@link EventJournal} 的事件存储，每条记录通过 CRC32 校验，data 字段不追加 "\t" + hashCode。
+ * 查询结果封装为与 Event 表字段一致的 MatrixCursor，上报时的解析逻辑与数据库保持一致
+ */
+class JournalEventStorage implements EventStorage {
+    private static final String[] COLUMNS = {"_id", DbParams.KEY_DATA, DbParams.KEY_CREATED_AT, DbParams.KEY_EKEY, DbParams.KEY_PKV};
+    private final EventJournal mJournal;
+
+    JournalEventStorage(File directory) {
+        this.mJournal = new EventJournal(directory);
+    }
+
+    @Override
+    public long insert(ContentValues values) {
+        if (values == null || !values.containsKey(DbParams.KEY_DATA) || !values.containsKey(DbParams.KEY_CREATED_AT)) {
+            return -1;
+        }
+        return mJournal.append(values.getAsLong(DbParams.KEY_CREATED_AT), values.getAsString(DbParams.KEY_DATA),
+                values.getAsString(DbParams.KEY_EKEY), values.getAsInteger(DbParams.KEY_PKV));
+    }
+
+    @Override
+    public int bulkInsert(ContentValues[] valuesArray) {
+        int insertCount = 0;
+        for (ContentValues values : valuesArray) {
+            if (insert(values) != -1) {
+                insertCount++;
+            }
+        }
+        return insertCount;
+    }
+
+    @Override
+    public Cursor query(int limit) {
+        List<EventJournal.Record> records = mJournal.read(limit);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, records.size());
+        for (EventJournal.Record record : records) {
+            cursor.addRow(new Object[]{record.mId, record.mData, record.mCreatedAt, record.mEkey, record.mPkv});
+        }
+        return cursor;
+    }
+
+    @Override
+    public int delete(String id) {
+        if (DbParams.DB_DELETE_ALL.equals(id)) {
+            return mJournal.ackAll();
+        }
+        try {
+            return mJournal.ack(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            SALog.printStackTrace(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public int count() {
+        return mJournal.count();
+    }
+
+    @Override
+    public long getStorageSize() {
+        return mJournal.size();
+    }
+
+    @Override
+    public int evict(long bytesToFree) {
+        long lastId = mJournal.findEvictionId(bytesToFree);
+        return lastId == -1 ? 0 : mJournal.ack(lastId);
+    }
+
+    @Override
+    public boolean isRecordChecksumEnabled() {
+        return true;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Created by dengshiwei on 2020/06/22.
+ * Copyright 2015－2020 Sensors Data Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.sensorsdata.analytics.android.sdk.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.sensorsdata.analytics.android.sdk.SALog;
+
+/**
+ * 未开启多进程时直接读写 Event 表，不经过 ContentProvider 的 Binder 调用以及 Cursor 跨进程封装。
+ * 与 SensorsDataContentProvider 共用同一个 SensorsDataDBHelper，数据条数的计数也保持一致。
+ */
+class SQLiteEventStorage implements EventStorage {
+    private static final String TAG = "SA.SQLiteEventStorage";
+    private static final String INSERT_EVENT = String.format("INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)",
+            DbParams.TABLE_EVENTS, DbParams.KEY_DATA, DbParams.KEY_CREATED_AT, DbParams.KEY_EKEY, DbParams.KEY_PKV);
+    private final SensorsDataDBHelper mDBHelper;
+    /* 预编译的插入语句，数据库重新打开后需要重新编译 */
+    private SQLiteStatement mInsertStatement;
+    private SQLiteDatabase mStatementDatabase;
+    private boolean isDbWritable = true;
+
+    SQLiteEventStorage(SensorsDataDBHelper dbHelper) {
+        this.mDBHelper = dbHelper;
+    }
+
+    @Override
+    public synchronized long insert(ContentValues values) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return -1;
+        }
+        try {
+            long id = insert(database, values);
+            if (id != -1) {
+                mDBHelper.onEventsInserted(1, SensorsDataDBHelper.utf8Length(values.getAsString(DbParams.KEY_DATA)));
+            }
+            return id;
+        } catch (SQLiteException e) {
+            SALog.printStackTrace(e);
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized int bulkInsert(ContentValues[] valuesArray) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return 0;
+        }
+        int insertCount = 0;
+        long insertBytes = 0;
+        try {
+            database.beginTransaction();
+            try {
+                for (ContentValues values : valuesArray) {
+                    if (insert(database, values) != -1) {
+                        insertCount++;
+                        insertBytes += SensorsDataDBHelper.utf8Length(values.getAsString(DbParams.KEY_DATA));
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            mDBHelper.onEventsInserted(insertCount, insertBytes);
+        } catch (SQLiteException e) {
+            insertCount = 0;
+            SALog.printStackTrace(e);
+        }
+        return insertCount;
+    }
+
+    @Override
+    public synchronized Cursor query(int limit) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return null;
+        }
+        try {
+            return database.query(DbParams.TABLE_EVENTS, null, null, null, null, null,
+                    DbParams.KEY_CREATED_AT + " ASC", String.valueOf(limit));
+        } catch (SQLiteException e) {
+            SALog.printStackTrace(e);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int delete(String id) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return 0;
+        }
+        try {
+            if (DbParams.DB_DELETE_ALL.equals(id)) {
+                return mDBHelper.deleteEvents(database, null, null);
+            }
+            return mDBHelper.deleteEvents(database, "_id <= ?", new String[]{id});
+        } catch (SQLiteException e) {
+            SALog.printStackTrace(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public int count() {
+        return mDBHelper.getEventsCount();
+    }
+
+    @Override
+    public long getStorageSize() {
+        return mDBHelper.getEventsBytes();
+    }
+
+    @Override
+    public synchronized int evict(long bytesToFree) {
+        SQLiteDatabase database = getWritableDatabase();
+        if (database == null) {
+            return 0;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = database.query(DbParams.TABLE_EVENTS, SensorsDataDBHelper.EVENTS_SIZE_PROJECTION,
+                    null, null, null, null, "_id ASC");
+            String lastId = SensorsDataDBHelper.findEvictionId(cursor, bytesToFree);
+            cursor.close();
+            cursor = null;
+            if (lastId != null) {
+                return mDBHelper.deleteEvents(database, "_id <= ?", new String[]{lastId});
+            }
+        } catch (SQLiteException e) {
+            SALog.printStackTrace(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isRecordChecksumEnabled() {
+        return false;
+    }
+
+    private long insert(SQLiteDatabase database, ContentValues values) {
+        if (values == null || !values.containsKey(DbParams.KEY_DATA) || !values.containsKey(DbParams.KEY_CREATED_AT)) {
+            return -1;
+        }
+        if (mInsertStatement == null || mStatementDatabase != database) {
+            if (mInsertStatement != null) {
+                mInsertStatement.close();
+            }
+            mInsertStatement = database.compileStatement(INSERT_EVENT);
+            mStatementDatabase = database;
+        }
+        SQLiteStatement statement = mInsertStatement;
+        statement.clearBindings();
+        statement.bindString(1, values.getAsString(DbParams.KEY_DATA));
+        statement.bindLong(2, values.getAsLong(DbParams.KEY_CREATED_AT));
+        String ekey = values.getAsString(DbParams.KEY_EKEY);
+        if (ekey != null) {
+            statement.bindString(3, ekey);
+        } else {
+            statement.bindNull(3);
+        }
+        Integer pkv = values.getAsInteger(DbParams.KEY_PKV);
+        if (pkv != null) {
+            statement.bindLong(4, pkv);
+        } else {
+            statement.bindNull(4);
+        }
+        return statement.executeInsert();
+    }
+
+    private SQLiteDatabase getWritableDatabase() {
+        if (!isDbWritable) {
+            return null;
+        }
+        try {
+            return mDBHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            // 与 SensorsDataContentProvider 保持一致，数据库不可写时不再重试
+            isDbWritable = false;
+            SALog.i(TAG, "Could not open Sensors Analytics DB", e);
+        }
+        return null;
+    }
+}
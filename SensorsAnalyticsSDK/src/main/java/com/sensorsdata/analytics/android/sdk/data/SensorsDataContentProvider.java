@@ -53,6 +53,7 @@ public class SensorsDataContentProvider extends ContentProvider {
     private final static int CHANNEL_PERSISTENT = 8;
     private final static int FLUSH_DATA = 9;
     private final static int FIRST_PROCESS_START = 10;
+    private final static int EVENTS_COUNT = 11;
     private static UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     private SensorsDataDBHelper dbHelper;
@@ -91,7 +92,8 @@ public class SensorsDataContentProvider extends ContentProvider {
             uriMatcher.addURI(authority, DbParams.TABLE_CHANNEL_PERSISTENT, CHANNEL_PERSISTENT);
             uriMatcher.addURI(authority, DbParams.TABLE_SUB_PROCESS_FLUSH_DATA, FLUSH_DATA);
             uriMatcher.addURI(authority, DbParams.TABLE_FIRST_PROCESS_START, FIRST_PROCESS_START);
-            dbHelper = new SensorsDataDBHelper(context);
+            uriMatcher.addURI(authority, DbParams.TABLE_EVENTS_COUNT, EVENTS_COUNT);
+            dbHelper = SensorsDataDBHelper.getInstance(context);
 
             /* 迁移数据，并删除老的数据库 */
             try {
@@ -142,8 +144,7 @@ public class SensorsDataContentProvider extends ContentProvider {
             int code = uriMatcher.match(uri);
             if (EVENTS == code) {
                 try {
-                    SQLiteDatabase database = dbHelper.getWritableDatabase();
-                    deletedCounts = database.delete(DbParams.TABLE_EVENTS, selection, selectionArgs);
+                    deletedCounts = dbHelper.deleteEvents(dbHelper.getWritableDatabase(), selection, selectionArgs);
                 } catch (SQLiteException e) {
                     isDbWritable = false;
                     SALog.printStackTrace(e);
@@ -197,9 +198,46 @@ public class SensorsDataContentProvider extends ContentProvider {
             return uri;
         }
         long d = database.insert(DbParams.TABLE_EVENTS, "_id", values);
+        if (d != -1) {
+            dbHelper.onEventsInserted(1, SensorsDataDBHelper.utf8Length(values.getAsString(DbParams.KEY_DATA)));
+        }
         return ContentUris.withAppendedId(uri, d);
     }
 
+    /**
+     * 在 bulkInsert 的事务中批量插入事件，事务提交成功后才更新条数和字节数
+     *
+     * @param database SQLiteDatabase
+     * @param values 事件数据
+     * @return 实际写入的条数，事务回滚时返回 0
+     */
+    private int bulkInsertEvents(SQLiteDatabase database, ContentValues[] values) {
+        int insertCount = 0;
+        long insertBytes = 0;
+        try {
+            database.beginTransaction();
+            try {
+                for (ContentValues contentValues : values) {
+                    if (contentValues == null || !contentValues.containsKey(DbParams.KEY_DATA) || !contentValues.containsKey(DbParams.KEY_CREATED_AT)) {
+                        continue;
+                    }
+                    if (database.insert(DbParams.TABLE_EVENTS, "_id", contentValues) != -1) {
+                        insertCount++;
+                        insertBytes += SensorsDataDBHelper.utf8Length(contentValues.getAsString(DbParams.KEY_DATA));
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            dbHelper.onEventsInserted(insertCount, insertBytes);
+        } catch (SQLiteException e) {
+            insertCount = 0;
+            SALog.printStackTrace(e);
+        }
+        return insertCount;
+    }
+
     private Uri insertChannelPersistent(Uri uri, ContentValues values) {
         SQLiteDatabase database;
         try {
@@ -221,26 +259,26 @@ public class SensorsDataContentProvider extends ContentProvider {
         if (!isDbWritable) {
             return 0;
         }
-        int numValues;
-        SQLiteDatabase database = null;
+        SQLiteDatabase database;
+        try {
+            database = dbHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            isDbWritable = false;
+            SALog.printStackTrace(e);
+            return 0;
+        }
+        int numValues = values.length;
+        if (uriMatcher.match(uri) == EVENTS) {
+            return bulkInsertEvents(database, values);
+        }
+        database.beginTransaction();
         try {
-            try {
-                database = dbHelper.getWritableDatabase();
-            } catch (SQLiteException e) {
-                isDbWritable = false;
-                SALog.printStackTrace(e);
-                return 0;
-            }
-            database.beginTransaction();
-            numValues = values.length;
             for (int i = 0; i < numValues; i++) {
                 insert(uri, values[i]);
             }
             database.setTransactionSuccessful();
         } finally {
-            if (database != null) {
-                database.endTransaction();
-            }
+            database.endTransaction();
         }
         return numValues;
     }
@@ -309,6 +347,7 @@ public class SensorsDataContentProvider extends ContentProvider {
                 break;
             case LOGIN_ID:
                 persistentLoginId.commit(values.getAsString(DbParams.TABLE_LOGIN_ID));
+                contentResolver.notifyChange(uri, null);
                 break;
             case FLUSH_DATA:
                 persistentFlushDataState.commit(values.getAsBoolean(DbParams.TABLE_SUB_PROCESS_FLUSH_DATA));
@@ -370,6 +409,11 @@ public class SensorsDataContentProvider extends ContentProvider {
                 data = isFirstProcessStarted ? 1 : 0;
                 column = DbParams.TABLE_FIRST_PROCESS_START;
                 break;
+            case EVENTS_COUNT:
+                // 同时返回条数与字节数，插入后一次查询即可判断是否超出缓存上限
+                MatrixCursor countCursor = new MatrixCursor(new String[]{DbParams.TABLE_EVENTS_COUNT, DbParams.KEY_EVENTS_BYTES});
+                countCursor.addRow(new Object[]{dbHelper.getEventsCount(), dbHelper.getEventsBytes()});
+                return countCursor;
             default:
                 break;
         }
@@ -16,23 +16,89 @@
  */
 package com.sensorsdata.analytics.android.sdk.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
+import com.sensorsdata.analytics.android.sdk.ThreadNameConstants;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class SensorsDataDBHelper extends SQLiteOpenHelper {
     private static final String TAG = "SA.SQLiteOpenHelper";
     private static final String CREATE_EVENTS_TABLE =
-            String.format("CREATE TABLE %s (_id INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL, %s INTEGER NOT NULL);", DbParams.TABLE_EVENTS, DbParams.KEY_DATA, DbParams.KEY_CREATED_AT);
+            String.format("CREATE TABLE %s (_id INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT NOT NULL, %s INTEGER NOT NULL, %s TEXT, %s INTEGER);",
+                    DbParams.TABLE_EVENTS, DbParams.KEY_DATA, DbParams.KEY_CREATED_AT, DbParams.KEY_EKEY, DbParams.KEY_PKV);
     private static final String EVENTS_TIME_INDEX =
             String.format("CREATE INDEX IF NOT EXISTS time_idx ON %s (%s);", DbParams.TABLE_EVENTS, DbParams.KEY_CREATED_AT);
     private static final String CHANNEL_EVENT_PERSISTENT_TABLE = String.format("CREATE TABLE %s (%s TEXT PRIMARY KEY, %s INTEGER)",
             DbParams.TABLE_CHANNEL_PERSISTENT, DbParams.KEY_CHANNEL_EVENT_NAME, DbParams.KEY_CHANNEL_RESULT);
 
-    SensorsDataDBHelper(Context context) {
+    /* 单条事件 data 字段的字节数 */
+    private static final String EVENT_BYTES = String.format("length(CAST(%s AS BLOB))", DbParams.KEY_DATA);
+    /* 计算淘汰位置时查询的字段 */
+    static final String[] EVENTS_SIZE_PROJECTION = {"_id", EVENT_BYTES};
+    /* WAL 文件超过该大小时，checkpoint 后截断 */
+    private static final long JOURNAL_SIZE_LIMIT = 512 * 1024;
+    /* WAL checkpoint 与增量 vacuum 的最小间隔 */
+    private static final long MAINTENANCE_INTERVAL = 5 * 60 * 1000;
+
+    private static SensorsDataDBHelper sInstance;
+    /* Event 表中的数据条数，-1 表示尚未从数据库中校准 */
+    private int mEventsCount = -1;
+    /* Event 表中 data 字段的 UTF-8 字节数，-1 表示尚未从数据库中校准 */
+    private long mEventsBytes = -1;
+    private boolean isWALEnabled;
+    private long mLastMaintenanceTime;
+    private ThreadPoolExecutor mMaintenanceExecutor;
+
+    private SensorsDataDBHelper(Context context) {
         super(context, DbParams.DATABASE_NAME, null, DbParams.DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // 写入与上报线程的查询互不阻塞
+            setWriteAheadLoggingEnabled(true);
+            isWALEnabled = true;
+        }
+    }
+
+    /**
+     * SensorsDataContentProvider 与 SQLiteEventStorage 共用同一个实例，保证同一进程内只有一个数据库连接
+     *
+     * @param context Context
+     * @return SensorsDataDBHelper
+     */
+    static synchronized SensorsDataDBHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SensorsDataDBHelper(context);
+        }
+        return sInstance;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // 在 onCreate 之前执行，新建的数据库才能开启 auto_vacuum
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                isWALEnabled = db.enableWriteAheadLogging();
+            }
+            configure(db);
+        }
     }
 
     @Override
@@ -46,6 +112,13 @@ class SensorsDataDBHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 5) {
+            // 只新增加密数据的列，保留已入库的数据
+            SALog.i(TAG, "Upgrading app, adding encrypt columns to Sensors Analytics DB");
+            db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT", DbParams.TABLE_EVENTS, DbParams.KEY_EKEY));
+            db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER", DbParams.TABLE_EVENTS, DbParams.KEY_PKV));
+            return;
+        }
         SALog.i(TAG, "Upgrading app, replacing Sensors Analytics DB");
 
         db.execSQL(String.format("DROP TABLE IF EXISTS %s", DbParams.TABLE_EVENTS));
@@ -53,4 +126,215 @@ class SensorsDataDBHelper extends SQLiteOpenHelper {
         db.execSQL(EVENTS_TIME_INDEX);
         db.execSQL(CHANNEL_EVENT_PERSISTENT_TABLE);
     }
+
+    /**
+     * 获取 Event 表中的数据条数，首次调用时从数据库中校准
+     *
+     * @return 数据条数
+     */
+    synchronized int getEventsCount() {
+        if (mEventsCount < 0) {
+            try {
+                mEventsCount = (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), DbParams.TABLE_EVENTS);
+            } catch (SQLiteException e) {
+                SALog.printStackTrace(e);
+                return 0;
+            }
+        }
+        return mEventsCount;
+    }
+
+    /**
+     * 获取 Event 表中 data 字段的 UTF-8 字节数，首次调用时从数据库中校准
+     *
+     * @return 字节数
+     */
+    synchronized long getEventsBytes() {
+        if (mEventsBytes < 0) {
+            try {
+                mEventsBytes = sumEventsBytes(getReadableDatabase(), null, null);
+            } catch (SQLiteException e) {
+                SALog.printStackTrace(e);
+                return 0;
+            }
+        }
+        return mEventsBytes;
+    }
+
+    /**
+     * 插入 Event 数据后更新计数
+     *
+     * @param count 插入的条数
+     * @param bytes 插入的 data 字段字节数
+     */
+    synchronized void onEventsInserted(int count, long bytes) {
+        updateEvents(count, bytes);
+    }
+
+    /**
+     * 删除 Event 数据并更新计数，之后在后台回收空闲页
+     *
+     * @param db SQLiteDatabase
+     * @param selection 删除条件，为 null 时删除全部
+     * @param selectionArgs 删除条件的参数
+     * @return 删除的条数
+     */
+    int deleteEvents(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        int deletedCounts;
+        if (selection == null) {
+            deletedCounts = db.delete(DbParams.TABLE_EVENTS, null, null);
+            // whereClause 为 null 时 delete 不保证返回删除的条数
+            synchronized (this) {
+                mEventsCount = 0;
+                mEventsBytes = 0;
+            }
+        } else {
+            long deletedBytes;
+            db.beginTransaction();
+            try {
+                deletedBytes = sumEventsBytes(db, selection, selectionArgs);
+                deletedCounts = db.delete(DbParams.TABLE_EVENTS, selection, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            synchronized (this) {
+                updateEvents(-deletedCounts, -deletedBytes);
+            }
+        }
+        if (deletedCounts > 0) {
+            scheduleMaintenance();
+        }
+        return deletedCounts;
+    }
+
+    /**
+     * 计算需要删除的最早事件，删除 _id 小于等于返回值的事件后至少释放 bytesToFree 字节
+     *
+     * @param cursor 按 _id 升序排列，字段为 {@link #EVENTS_SIZE_PROJECTION}
+     * @param bytesToFree 需要释放的字节数
+     * @return _id，没有数据时返回 null
+     */
+    static String findEvictionId(Cursor cursor, long bytesToFree) {
+        String lastId = null;
+        long freedBytes = 0;
+        while (freedBytes < bytesToFree && cursor.moveToNext()) {
+            lastId = cursor.getString(0);
+            freedBytes += cursor.getLong(1);
+        }
+        return lastId;
+    }
+
+    /**
+     * UTF-8 编码后的字节数，与 length(CAST(data AS BLOB)) 一致
+     *
+     * @param data 字符串
+     * @return 字节数
+     */
+    static long utf8Length(String data) {
+        long length = 0;
+        for (int i = 0, size = data.length(); i < size; i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(data.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void updateEvents(int countDelta, long bytesDelta) {
+        if (mEventsCount >= 0) {
+            mEventsCount += countDelta;
+            if (mEventsCount < 0) {
+                // 计数异常时，下次查询重新校准
+                mEventsCount = -1;
+            }
+        }
+        if (mEventsBytes >= 0) {
+            mEventsBytes += bytesDelta;
+            if (mEventsBytes < 0) {
+                mEventsBytes = -1;
+            }
+        }
+    }
+
+    private static long sumEventsBytes(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        String sql = "SELECT IFNULL(SUM(" + EVENT_BYTES + "), 0) FROM " + DbParams.TABLE_EVENTS;
+        if (selection != null) {
+            sql += " WHERE " + selection;
+        }
+        return DatabaseUtils.longForQuery(db, sql, selectionArgs);
+    }
+
+    /**
+     * 删除 Event 数据后在后台线程中执行 WAL checkpoint 与增量 vacuum，两次执行至少间隔 {@link #MAINTENANCE_INTERVAL}
+     */
+    private void scheduleMaintenance() {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (mLastMaintenanceTime != 0 && now - mLastMaintenanceTime < MAINTENANCE_INTERVAL) {
+                return;
+            }
+            mLastMaintenanceTime = now;
+            if (mMaintenanceExecutor == null) {
+                mMaintenanceExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, ThreadNameConstants.THREAD_DB_MAINTENANCE);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                mMaintenanceExecutor.allowCoreThreadTimeOut(true);
+            }
+        }
+        mMaintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    if (isWALEnabled) {
+                        // 默认为 PASSIVE 模式，不等待正在进行的读写
+                        execPragma(db, "PRAGMA wal_checkpoint");
+                    }
+                    execPragma(db, "PRAGMA incremental_vacuum");
+                } catch (Exception e) {
+                    SALog.printStackTrace(e);
+                }
+            }
+        });
+    }
+
+    private void configure(SQLiteDatabase db) {
+        try {
+            // WAL 模式下 NORMAL 只在 checkpoint 时 fsync，断电时最多丢失最近提交的事务，数据库不会损坏
+            execPragma(db, "PRAGMA synchronous = NORMAL");
+            execPragma(db, "PRAGMA journal_size_limit = " + JOURNAL_SIZE_LIMIT);
+            // 只对新建的数据库生效，删除数据后通过 incremental_vacuum 回收空闲页
+            execPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    /**
+     * 部分 PRAGMA 会返回结果，execSQL 在部分系统版本上会抛出异常，因此通过 rawQuery 执行
+     */
+    private static void execPragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            // getCount 会执行语句直到结束
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
 }
@@ -25,16 +25,20 @@ import com.sensorsdata.analytics.android.sdk.SALog;
 import com.sensorsdata.analytics.android.sdk.util.Base64Coder;
 import com.sensorsdata.analytics.android.sdk.util.SensorsDataUtils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
 import java.security.Key;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
 import javax.crypto.Cipher;
@@ -47,18 +51,48 @@ public class SensorsDataEncrypt {
     private static final String SP_SECRET_KEY = "secret_key";
     private static final int KEY_VERSION_DEFAULT = 0;
     private static final String TAG = "SensorsDataEncrypt";
-    private byte[] aesKeyValue;
-    private SecreteKey mSecreteKey;
-    /**
-     * RSA 加密 AES 密钥后的值
-     */
-    private String mEkey;
+    /* 本地加密数据的前缀 */
+    private static final String LOCAL_DATA_PREFIX = "sa_local:";
+    /* 本地加密密钥的文件名，保存在应用私有目录中 */
+    private static final String LOCAL_KEY_FILE = "sensorsdata_local_key";
+    /* 本地加密密钥的长度，单位字节 */
+    private static final int LOCAL_KEY_LENGTH = 16;
+    /* 当前公钥版本对应的 AES 密钥，公钥更新后置空，下次加密时重新生成 */
+    private volatile KeyState mKeyState;
+    /* AES Cipher 只在各自线程内复用，每次加密重新 init */
+    private final ThreadLocal<Cipher> mAESCipher = new ThreadLocal<>();
+    private final SecureRandom mIVRandom = new SecureRandom();
     private IPersistentSecretKey mPersistentSecretKey;
     private Context mContext;
+    /* 是否在上报时对整批数据加密 */
+    private final boolean mBatchEncrypt;
+    /* 本地加密使用的密钥以及 Cipher */
+    private SecretKeySpec mLocalKey;
+    private Cipher mLocalEncryptCipher;
+    private Cipher mLocalDecryptCipher;
 
     public SensorsDataEncrypt(Context context, IPersistentSecretKey persistentSecretKey) {
+        this(context, persistentSecretKey, false);
+    }
+
+    /**
+     * @param context Context
+     * @param persistentSecretKey 密钥存储接口
+     * @param batchEncrypt 是否在上报时对整批数据加密，开启后事件入库时只进行本地加密
+     */
+    public SensorsDataEncrypt(Context context, IPersistentSecretKey persistentSecretKey, boolean batchEncrypt) {
         this.mPersistentSecretKey = persistentSecretKey;
         this.mContext = context;
+        this.mBatchEncrypt = batchEncrypt;
+    }
+
+    /**
+     * 是否在上报时对整批数据加密
+     *
+     * @return true：入库时本地加密，上报时整批加密；false：入库时逐条加密
+     */
+    public boolean isBatchEncrypt() {
+        return mBatchEncrypt;
     }
 
     /**
@@ -69,23 +103,15 @@ public class SensorsDataEncrypt {
      */
     public JSONObject encryptTrackData(JSONObject jsonObject) {
         try {
-            if (isSecretKeyNull(mSecreteKey)) {
-                mSecreteKey = loadSecretKey();
-                if (isSecretKeyNull(mSecreteKey)) {
-                    return jsonObject;
-                }
-            }
-
-            generateAESKey(mSecreteKey);
-
-            if (TextUtils.isEmpty(mEkey)) {
+            KeyState keyState = getKeyState();
+            if (keyState == null) {
                 return jsonObject;
             }
 
-            String encryptData = aesEncrypt(aesKeyValue, jsonObject.toString());
+            String encryptData = aesEncrypt(keyState.aesKey, jsonObject.toString());
             JSONObject dataJson = new JSONObject();
-            dataJson.put("ekey", mEkey);
-            dataJson.put("pkv", mSecreteKey.version);
+            dataJson.put("ekey", keyState.ekey);
+            dataJson.put("pkv", keyState.version);
             dataJson.put("payloads", encryptData);
             return dataJson;
         } catch (Exception ex) {
@@ -94,6 +120,89 @@ public class SensorsDataEncrypt {
         return jsonObject;
     }
 
+    /**
+     * 对整批数据进行一次压缩和加密，数据格式与 encryptTrackData 一致，payloads 中只有一条数据
+     *
+     * @param data 需要加密的数据，JSONArray 格式的字符串
+     * @return 加密后的数据，密钥为空或者加密失败时返回 null
+     */
+    public JSONObject encryptBatchData(String data) {
+        try {
+            KeyState keyState = getKeyState();
+            if (keyState == null) {
+                return null;
+            }
+
+            String encryptData = aesEncrypt(keyState.aesKey, data);
+            if (encryptData == null) {
+                return null;
+            }
+            JSONObject dataJson = new JSONObject();
+            dataJson.put("ekey", keyState.ekey);
+            dataJson.put("pkv", keyState.version);
+            dataJson.put("payloads", new JSONArray().put(encryptData));
+            return dataJson;
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        }
+        return null;
+    }
+
+    /**
+     * 本地加密，用于入库的数据。不压缩，使用随机生成并保存在应用私有目录中的密钥，不依赖 RSA 公钥，各进程一致
+     *
+     * @param data 需要加密的数据
+     * @return 加密后的数据，失败时返回 null
+     */
+    public synchronized String encryptLocalData(String data) {
+        try {
+            if (mLocalEncryptCipher == null) {
+                mLocalEncryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
+            }
+            byte[] ivBytes = new byte[16];
+            mIVRandom.nextBytes(ivBytes);
+            mLocalEncryptCipher.init(Cipher.ENCRYPT_MODE, getLocalKey(), new IvParameterSpec(ivBytes));
+            byte[] encryptedBytes = mLocalEncryptCipher.doFinal(data.getBytes(Base64Coder.CHARSET_UTF8));
+            byte[] cipherMessage = new byte[ivBytes.length + encryptedBytes.length];
+            System.arraycopy(ivBytes, 0, cipherMessage, 0, ivBytes.length);
+            System.arraycopy(encryptedBytes, 0, cipherMessage, ivBytes.length, encryptedBytes.length);
+            return LOCAL_DATA_PREFIX + new String(Base64Coder.encode(cipherMessage));
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        }
+        return null;
+    }
+
+    /**
+     * 是否为本地加密的数据
+     *
+     * @param data 入库的数据
+     * @return true：本地加密的数据
+     */
+    public boolean isLocalData(String data) {
+        return data != null && data.startsWith(LOCAL_DATA_PREFIX);
+    }
+
+    /**
+     * 本地解密
+     *
+     * @param data encryptLocalData 加密后的数据
+     * @return 原始数据，失败时返回 null
+     */
+    public synchronized String decryptLocalData(String data) {
+        try {
+            if (mLocalDecryptCipher == null) {
+                mLocalDecryptCipher = Cipher.getInstance("AES/CTR/NoPadding");
+            }
+            byte[] cipherMessage = Base64Coder.decode(data.substring(LOCAL_DATA_PREFIX.length()));
+            mLocalDecryptCipher.init(Cipher.DECRYPT_MODE, getLocalKey(), new IvParameterSpec(cipherMessage, 0, 16));
+            return new String(mLocalDecryptCipher.doFinal(cipherMessage, 16, cipherMessage.length - 16), Base64Coder.CHARSET_UTF8);
+        } catch (Exception ex) {
+            SALog.printStackTrace(ex);
+        }
+        return null;
+    }
+
     /**
      * 保存密钥
      *
@@ -109,6 +218,11 @@ public class SensorsDataEncrypt {
             } else {
                 saveLocalSecretKey(secreteKey.toString());
             }
+            KeyState keyState = mKeyState;
+            if (keyState != null && (keyState.version != secreteKey.version || !keyState.publicKey.equals(secreteKey.key))) {
+                // 公钥更新，重新生成 AES 密钥
+                mKeyState = null;
+            }
         } catch (Exception e) {
             SALog.printStackTrace(e);
         }
@@ -157,19 +271,21 @@ public class SensorsDataEncrypt {
     /**
      * AES 加密
      *
-     * @param key AES 加密秘钥
+     * @param secretKeySpec AES 加密秘钥
      * @param content 加密内容
      * @return AES 加密后的数据
      */
-    private String aesEncrypt(byte[] key, String content) {
+    private String aesEncrypt(SecretKeySpec secretKeySpec, String content) {
         try {
-            Random random = new Random();
             // 随机生成初始化向量
             byte[] ivBytes = new byte[16];
-            random.nextBytes(ivBytes);
+            mIVRandom.nextBytes(ivBytes);
             byte[] contentBytes = gzipEventData(content);
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = mAESCipher.get();
+            if (cipher == null) {
+                cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                mAESCipher.set(cipher);
+            }
             cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(ivBytes));
 
             byte[] encryptedBytes = cipher.doFinal(contentBytes);
@@ -256,16 +372,86 @@ public class SensorsDataEncrypt {
         }
     }
 
+    /**
+     * 获取当前公钥对应的 AES 密钥，每个公钥版本只生成一次 AES 密钥以及 RSA 加密后的 ekey
+     *
+     * @return 公钥为空或者 RSA 加密失败时返回 null
+     */
+    private KeyState getKeyState() throws Exception {
+        KeyState keyState = mKeyState;
+        if (keyState != null) {
+            return keyState;
+        }
+        synchronized (this) {
+            if (mKeyState == null) {
+                SecreteKey secreteKey = loadSecretKey();
+                if (isSecretKeyNull(secreteKey)) {
+                    return null;
+                }
+                mKeyState = generateAESKey(secreteKey);
+            }
+            return mKeyState;
+        }
+    }
+
     /**
      * 随机生成 AES 加密秘钥
      */
-    private void generateAESKey(SecreteKey secreteKey) throws NoSuchAlgorithmException {
-        if (TextUtils.isEmpty(mEkey) || aesKeyValue == null) {
+    private KeyState generateAESKey(SecreteKey secreteKey) throws NoSuchAlgorithmException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(128);
+        SecretKey secretKey = keyGen.generateKey();
+        byte[] aesKeyValue = secretKey.getEncoded();
+        String ekey = rsaEncrypt(secreteKey.key, aesKeyValue);
+        if (TextUtils.isEmpty(ekey)) {
+            return null;
+        }
+        return new KeyState(secreteKey, new SecretKeySpec(aesKeyValue, "AES"), ekey);
+    }
+
+    /**
+     * 本地加密的密钥，首次使用时随机生成
+     */
+    private SecretKeySpec getLocalKey() throws Exception {
+        if (mLocalKey == null) {
+            mLocalKey = new SecretKeySpec(loadLocalKey(), "AES");
+        }
+        return mLocalKey;
+    }
+
+    /**
+     * 从应用私有目录读取本地加密的密钥，不存在时随机生成并保存。
+     * 读取和生成都在文件锁中进行，多个进程同时调用时也只生成一次，各进程使用同一个密钥
+     *
+     * @return 密钥
+     * @throws Exception 异常
+     */
+    private byte[] loadLocalKey() throws Exception {
+        RandomAccessFile keyFile = new RandomAccessFile(new File(mContext.getFilesDir(), LOCAL_KEY_FILE), "rw");
+        FileLock lock = null;
+        try {
+            lock = keyFile.getChannel().lock();
+            byte[] key = new byte[LOCAL_KEY_LENGTH];
+            if (keyFile.length() == LOCAL_KEY_LENGTH) {
+                keyFile.readFully(key);
+                return key;
+            }
             KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            keyGen.init(128);
-            SecretKey secretKey = keyGen.generateKey();
-            aesKeyValue = secretKey.getEncoded();
-            mEkey = rsaEncrypt(secreteKey.key, aesKeyValue);
+            keyGen.init(LOCAL_KEY_LENGTH * 8);
+            key = keyGen.generateKey().getEncoded();
+            keyFile.setLength(0);
+            keyFile.write(key);
+            keyFile.getFD().sync();
+            return key;
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (Exception e) {
+                    SALog.printStackTrace(e);
+                }
+            }
+            keyFile.close();
         }
     }
 
@@ -331,5 +517,22 @@ public class SensorsDataEncrypt {
     private boolean isSecretKeyNull(SecreteKey secreteKey) {
         return secreteKey == null || TextUtils.isEmpty(secreteKey.key) || secreteKey.version == KEY_VERSION_DEFAULT;
     }
-}
 
+    /**
+     * 公钥版本与 AES 密钥、ekey 的对应关系，创建后不再修改
+     */
+    private static class KeyState {
+        final String publicKey;
+        final int version;
+        final SecretKeySpec aesKey;
+        /* RSA 加密 AES 密钥后的值 */
+        final String ekey;
+
+        KeyState(SecreteKey secreteKey, SecretKeySpec aesKey, String ekey) {
+            this.publicKey = secreteKey.key;
+            this.version = secreteKey.version;
+            this.aesKey = aesKey;
+            this.ekey = ekey;
+        }
+    }
+}
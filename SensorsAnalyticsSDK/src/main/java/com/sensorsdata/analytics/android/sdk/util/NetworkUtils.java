@@ -19,18 +19,35 @@ package com.sensorsdata.analytics.android.sdk.util;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.os.Build;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 
 import com.sensorsdata.analytics.android.sdk.SALog;
 import com.sensorsdata.analytics.android.sdk.SensorsDataAPI;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class NetworkUtils {
+    /* 已注册网络变化监听时缓存的有效期，移动网络制式变化不一定会触发回调，因此仍需定期刷新 */
+    private static final long CACHE_TTL_LISTENING = 30 * 1000;
+    /* 未注册网络变化监听时缓存的有效期 */
+    private static final long CACHE_TTL_POLLING = 5 * 1000;
+    /* 网络状态版本号，收到网络变化通知时递增，使缓存失效 */
+    private static final AtomicInteger sNetworkVersion = new AtomicInteger();
+    private static volatile NetworkState sNetworkState;
+    private static volatile boolean sIsListening;
+    private static boolean sIsRegistered;
 
     /**
      * 获取网络类型
@@ -39,6 +56,102 @@ public class NetworkUtils {
      * @return 网络类型
      */
     public static String networkType(Context context) {
+        return getNetworkState(context).networkType;
+    }
+
+    /**
+     * 是否有可用网络
+     *
+     * @param context Context
+     * @return true：网络可用，false：网络不可用
+     */
+    public static boolean isNetworkAvailable(Context context) {
+        return getNetworkState(context).isAvailable;
+    }
+
+    /**
+     * 获取缓存的网络状态，缓存失效时重新查询
+     */
+    private static NetworkState getNetworkState(Context context) {
+        NetworkState state = sNetworkState;
+        long now = SystemClock.elapsedRealtime();
+        long ttl = sIsListening ? CACHE_TTL_LISTENING : CACHE_TTL_POLLING;
+        if (state != null && state.version == sNetworkVersion.get() && now - state.updateTime < ttl) {
+            return state;
+        }
+        registerNetworkListener(context);
+        int version = sNetworkVersion.get();
+        state = new NetworkState(queryNetworkType(context), queryNetworkAvailable(context), now, version);
+        sNetworkState = state;
+        return state;
+    }
+
+    /**
+     * 注册网络变化监听，网络变化时使缓存失效。注册失败时只依赖缓存有效期刷新
+     */
+    private static synchronized void registerNetworkListener(Context context) {
+        if (sIsRegistered || context == null) {
+            return;
+        }
+        sIsRegistered = true;
+        try {
+            if (!SensorsDataUtils.checkHasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE)) {
+                return;
+            }
+            Context appContext = context.getApplicationContext();
+            if (appContext == null) {
+                appContext = context;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                registerNetworkCallback(appContext);
+            } else {
+                appContext.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        invalidateNetworkState();
+                    }
+                }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+            sIsListening = true;
+        } catch (Exception e) {
+            SALog.printStackTrace(e);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void registerNetworkCallback(Context context) {
+        ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) {
+            throw new IllegalStateException("ConnectivityManager is null");
+        }
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                invalidateNetworkState();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                invalidateNetworkState();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                invalidateNetworkState();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            manager.registerDefaultNetworkCallback(callback);
+        } else {
+            manager.registerNetworkCallback(new NetworkRequest.Builder().build(), callback);
+        }
+    }
+
+    private static void invalidateNetworkState() {
+        sNetworkVersion.incrementAndGet();
+    }
+
+    private static String queryNetworkType(Context context) {
         try {
             // 检测权限
             if (!SensorsDataUtils.checkHasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE)) {
@@ -116,14 +229,8 @@ public class NetworkUtils {
         }
     }
 
-    /**
-     * 是否有可用网络
-     *
-     * @param context Context
-     * @return true：网络可用，false：网络不可用
-     */
     @SuppressLint("WrongConstant")
-    public static boolean isNetworkAvailable(Context context) {
+    private static boolean queryNetworkAvailable(Context context) {
         // 检测权限
         if (!SensorsDataUtils.checkHasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE)) {
             return false;
@@ -191,4 +298,18 @@ public class NetworkUtils {
         }
         return false;
     }
+
+    private static final class NetworkState {
+        final String networkType;
+        final boolean isAvailable;
+        final long updateTime;
+        final int version;
+
+        NetworkState(String networkType, boolean isAvailable, long updateTime, int version) {
+            this.networkType = networkType;
+            this.isAvailable = isAvailable;
+            this.updateTime = updateTime;
+            this.version = version;
+        }
+    }
 }